@@ -0,0 +1,241 @@
+/**
+ *
+ */
+package org.theseed.dl4j;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This object is a mergeable quantile sketch of the KLL type.  It summarizes a stream of values in space
+ * proportional to the accuracy parameter, regardless of the stream length, and can answer approximate quantile
+ * queries.  Two sketches of different streams can be merged to form a sketch of the combined stream.
+ *
+ * The sketch is organized in levels.  Each value stored at level H represents 2^H values of the original stream.
+ * When a level fills, it is sorted and every other value (starting at a random position) is promoted to the next
+ * level.  The level capacities shrink geometrically going down from the top level.  NaN values are ignored.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class QuantileSketch {
+
+    // FIELDS
+    /** accuracy parameter (capacity of the top level) */
+    private final int k;
+    /** values stored at each level */
+    private double[][] levels;
+    /** number of values stored at each level */
+    private int[] sizes;
+    /** number of levels in use */
+    private int nLevels;
+    /** number of values summarized */
+    private long count;
+    /** random-number generator for compaction */
+    private final Random randomizer;
+    /** default accuracy parameter */
+    public static final int DEFAULT_K = 400;
+    /** capacity shrink factor per level */
+    private static final double SHRINK = 2.0 / 3.0;
+
+    /**
+     * Create an empty sketch with the default accuracy.
+     */
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * Create an empty sketch.
+     *
+     * @param k		accuracy parameter; the rank error is roughly proportional to 1/k
+     */
+    public QuantileSketch(int k) {
+        this.k = k;
+        this.levels = new double[4][];
+        this.sizes = new int[4];
+        this.nLevels = 0;
+        this.count = 0;
+        // The seed is fixed so that sketches are reproducible.
+        this.randomizer = new Random(k);
+        this.addLevel();
+    }
+
+    /**
+     * Add an empty level to the top of the sketch.
+     */
+    private void addLevel() {
+        if (this.nLevels >= this.levels.length) {
+            this.levels = Arrays.copyOf(this.levels, this.nLevels * 2);
+            this.sizes = Arrays.copyOf(this.sizes, this.nLevels * 2);
+        }
+        this.levels[this.nLevels] = new double[this.k];
+        this.sizes[this.nLevels] = 0;
+        this.nLevels++;
+    }
+
+    /**
+     * @return the capacity of a level
+     *
+     * @param h		index of the level (0 = bottom)
+     */
+    private int capacity(int h) {
+        int depth = this.nLevels - 1 - h;
+        int retVal = (int) Math.ceil(this.k * Math.pow(SHRINK, depth));
+        return Math.max(retVal, 2);
+    }
+
+    /**
+     * Add a value to a level, growing the level's array if necessary.
+     *
+     * @param h			index of the level
+     * @param value		value to add
+     */
+    private void append(int h, double value) {
+        double[] level = this.levels[h];
+        int n = this.sizes[h];
+        if (n >= level.length) {
+            level = Arrays.copyOf(level, level.length * 2);
+            this.levels[h] = level;
+        }
+        level[n] = value;
+        this.sizes[h] = n + 1;
+    }
+
+    /**
+     * Add a value to the sketch.  The sketch is only compacted when the bottom level reaches its capacity, since
+     * no other level can have grown since the last compaction.
+     *
+     * @param value		value to add
+     */
+    public void update(double value) {
+        if (! Double.isNaN(value)) {
+            this.append(0, value);
+            this.count++;
+            if (this.sizes[0] >= this.capacity(0))
+                this.compress();
+        }
+    }
+
+    /**
+     * Add an array of values to the sketch.
+     *
+     * @param values	values to add
+     */
+    public void update(double[] values) {
+        for (double value : values)
+            this.update(value);
+    }
+
+    /**
+     * Merge another sketch into this one.  The other sketch is not modified.
+     *
+     * @param other		sketch to merge
+     */
+    public void merge(QuantileSketch other) {
+        while (this.nLevels < other.nLevels)
+            this.addLevel();
+        for (int h = 0; h < other.nLevels; h++) {
+            double[] level = other.levels[h];
+            int n = other.sizes[h];
+            for (int i = 0; i < n; i++)
+                this.append(h, level[i]);
+        }
+        this.count += other.count;
+        this.compress();
+    }
+
+    /**
+     * Compact the sketch until every level is within its capacity.
+     */
+    private void compress() {
+        boolean done = false;
+        while (! done) {
+            done = true;
+            for (int h = 0; h < this.nLevels && done; h++) {
+                if (this.sizes[h] >= this.capacity(h)) {
+                    this.compact(h);
+                    done = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compact a level by promoting every other value to the next level up.
+     *
+     * @param h		index of the level to compact
+     */
+    private void compact(int h) {
+        if (h + 1 >= this.nLevels)
+            this.addLevel();
+        double[] level = this.levels[h];
+        int n = this.sizes[h];
+        Arrays.sort(level, 0, n);
+        // If the count is odd, the last value stays behind.
+        int pairs = n / 2;
+        int offset = (this.randomizer.nextBoolean() ? 1 : 0);
+        for (int i = 0; i < pairs; i++)
+            this.append(h + 1, level[2 * i + offset]);
+        if (n % 2 == 1) {
+            level[0] = level[n - 1];
+            this.sizes[h] = 1;
+        } else
+            this.sizes[h] = 0;
+    }
+
+    /**
+     * @return the number of values summarized by this sketch
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Compute the approximate quantiles that divide the stream into equal parts.  Duplicate values are removed,
+     * so the result may contain fewer than the requested number of values.
+     *
+     * @param parts		number of parts into which the stream should be divided
+     *
+     * @return a sorted array of distinct values at the boundaries between the parts
+     */
+    public double[] getQuantiles(int parts) {
+        // Sort a copy of each level.  All the values in a level have the same weight.
+        final int nLevels = this.nLevels;
+        double[][] sorted = new double[nLevels][];
+        long weightSum = 0;
+        for (int h = 0; h < nLevels; h++) {
+            int n = this.sizes[h];
+            sorted[h] = Arrays.copyOf(this.levels[h], n);
+            Arrays.sort(sorted[h]);
+            weightSum += (long) n << h;
+        }
+        // Merge the sorted levels, walking the cumulative weights and picking off a value each time we pass a
+        // part boundary.  In a tie, the lower level goes first.
+        int[] next = new int[nLevels];
+        double[] retVal = new double[Math.max(parts - 1, 0)];
+        int found = 0;
+        long cumulative = 0;
+        int part = 1;
+        int best = 0;
+        while (part < parts && best >= 0) {
+            best = -1;
+            for (int h = 0; h < nLevels; h++) {
+                if (next[h] < sorted[h].length
+                        && (best < 0 || Double.compare(sorted[h][next[h]], sorted[best][next[best]]) < 0))
+                    best = h;
+            }
+            if (best >= 0) {
+                double value = sorted[best][next[best]++];
+                cumulative += 1L << best;
+                while (part < parts && cumulative * parts >= part * weightSum) {
+                    if (found == 0 || retVal[found - 1] < value)
+                        retVal[found++] = value;
+                    part++;
+                }
+            }
+        }
+        return Arrays.copyOf(retVal, found);
+    }
+
+}
@@ -0,0 +1,297 @@
+/**
+ *
+ */
+package org.theseed.dl4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This object parses a tab-delimited file directly from the bytes of its input stream.  The input is read into a
+ * large buffer, and for each line the parser records the boundaries of the fields without creating any strings.
+ * Numeric fields can then be parsed straight from the buffer.  Strings are only created for fields that are
+ * explicitly requested as strings.
+ *
+ * The first line of the stream is the header, and it is returned as a string.  Each subsequent call to
+ * {@link #nextLine()} positions the parser on the next data line.  A carriage return at the end of a line is
+ * ignored, so files with Windows line endings are handled correctly.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TabbedByteParser implements AutoCloseable {
+
+    // FIELDS
+    /** input stream */
+    private final InputStream stream;
+    /** input buffer */
+    private byte[] buffer;
+    /** position of the first unprocessed byte in the buffer */
+    private int pos;
+    /** position past the last valid byte in the buffer */
+    private int limit;
+    /** TRUE if the end of the input stream has been reached */
+    private boolean eof;
+    /** start position of each field in the current line */
+    private int[] starts;
+    /** end position of each field in the current line */
+    private int[] ends;
+    /** number of fields in the current line */
+    private int nFields;
+    /** header line */
+    private final String header;
+    /** default buffer size */
+    public static final int BUFFER_SIZE = 1 << 20;
+    /** maximum number of significant digits that can be accumulated in a long without overflow */
+    private static final int MAX_DIGITS = 18;
+    /** powers of ten that are exactly representable as doubles */
+    private static final double[] POWERS = new double[] { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Create a parser for an input stream and read the header line.
+     *
+     * @param stream	input stream to parse
+     *
+     * @throws IOException
+     */
+    public TabbedByteParser(InputStream stream) throws IOException {
+        this.stream = stream;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.pos = 0;
+        this.limit = 0;
+        this.eof = false;
+        this.starts = new int[16];
+        this.ends = new int[16];
+        this.nFields = 0;
+        if (! this.nextLine())
+            throw new IOException("Input file has no header line.");
+        this.header = new String(this.buffer, this.starts[0], this.ends[this.nFields - 1] - this.starts[0],
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the header line
+     */
+    public String getHeader() {
+        return this.header;
+    }
+
+    /**
+     * @return TRUE if there is another line in the input
+     *
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException {
+        if (this.pos >= this.limit)
+            this.fill();
+        return (this.pos < this.limit);
+    }
+
+    /**
+     * Read more data into the buffer.  The unprocessed bytes are moved to the start of the buffer, and the buffer
+     * is enlarged if it is already full of them.
+     *
+     * @return TRUE if more data was read, FALSE if the end of the stream has been reached
+     *
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        boolean retVal = false;
+        if (! this.eof) {
+            int remaining = this.limit - this.pos;
+            if (this.pos > 0) {
+                System.arraycopy(this.buffer, this.pos, this.buffer, 0, remaining);
+                this.pos = 0;
+                this.limit = remaining;
+            } else if (remaining == this.buffer.length)
+                this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+            int n = this.stream.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (n < 0)
+                this.eof = true;
+            else {
+                this.limit += n;
+                retVal = true;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Position on the next line of the input and locate its fields.
+     *
+     * @return TRUE if a line was found, FALSE if the end of the input has been reached
+     *
+     * @throws IOException
+     */
+    public boolean nextLine() throws IOException {
+        boolean retVal = this.hasNext();
+        if (retVal) {
+            // Find the end of the line, refilling the buffer as needed.  A refill can move the line, so the
+            // scan position is kept relative to the line start.
+            int scanned = 0;
+            int end = -1;
+            while (end < 0) {
+                final byte[] buf = this.buffer;
+                int p = this.pos + scanned;
+                while (p < this.limit && buf[p] != '\n')
+                    p++;
+                if (p < this.limit)
+                    end = p;
+                else {
+                    scanned = p - this.pos;
+                    if (! this.fill())
+                        end = this.limit;
+                }
+            }
+            // Split the line into fields.
+            final byte[] buf = this.buffer;
+            int lineEnd = end;
+            if (lineEnd > this.pos && buf[lineEnd - 1] == '\r')
+                lineEnd--;
+            this.nFields = 0;
+            int start = this.pos;
+            for (int p = this.pos; p < lineEnd; p++) {
+                if (buf[p] == '\t') {
+                    this.addField(start, p);
+                    start = p + 1;
+                }
+            }
+            this.addField(start, lineEnd);
+            this.pos = Math.min(end + 1, this.limit);
+        }
+        return retVal;
+    }
+
+    /**
+     * Record the boundaries of a field in the current line.
+     *
+     * @param start		position of the first byte in the field
+     * @param end		position past the last byte in the field
+     */
+    private void addField(int start, int end) {
+        if (this.nFields >= this.starts.length) {
+            this.starts = Arrays.copyOf(this.starts, this.nFields * 2);
+            this.ends = Arrays.copyOf(this.ends, this.nFields * 2);
+        }
+        this.starts[this.nFields] = start;
+        this.ends[this.nFields] = end;
+        this.nFields++;
+    }
+
+    /**
+     * @return the number of fields in the current line
+     */
+    public int size() {
+        return this.nFields;
+    }
+
+    /**
+     * @return the specified field of the current line as a string, or an empty string if the line does not have
+     * 		   that many fields
+     *
+     * @param i		index of the desired field
+     */
+    public String getString(int i) {
+        String retVal = "";
+        if (i < this.nFields)
+            retVal = new String(this.buffer, this.starts[i], this.ends[i] - this.starts[i], StandardCharsets.UTF_8);
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the specified field of the current line consists of exactly the specified bytes
+     *
+     * @param i			index of the field to check
+     * @param value		UTF-8 bytes of the value to compare
+     */
+    public boolean matches(int i, byte[] value) {
+        boolean retVal = false;
+        if (i < this.nFields && this.ends[i] - this.starts[i] == value.length) {
+            retVal = true;
+            final int start = this.starts[i];
+            for (int k = 0; retVal && k < value.length; k++)
+                retVal = (this.buffer[start + k] == value[k]);
+        }
+        return retVal;
+    }
+
+    /**
+     * Parse the specified field of the current line as a floating-point number.  Plain decimal numbers with up
+     * to 18 significant digits and a small exponent are converted directly, using a single exact multiplication or
+     * division so that the result is correctly rounded.  Anything else is passed to {@link Double#parseDouble},
+     * so the result is always the same as it would be for the field string.
+     *
+     * @param i		index of the field to parse
+     *
+     * @return the numeric value of the field
+     *
+     * @throws NumberFormatException if the field is not a valid number
+     */
+    public double getDouble(int i) {
+        // A missing field is treated as empty, which will fall through to the slow path and fail.
+        final byte[] buf = this.buffer;
+        final int end = (i < this.nFields ? this.ends[i] : 0);
+        int p = (i < this.nFields ? this.starts[i] : 0);
+        boolean negative = false;
+        if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+            negative = (buf[p] == '-');
+            p++;
+        }
+        // Accumulate the digits before and after the decimal point.
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = 0;
+        while (p < end && buf[p] >= '0' && buf[p] <= '9') {
+            mantissa = mantissa * 10 + (buf[p] - '0');
+            digits++;
+            p++;
+        }
+        if (p < end && buf[p] == '.') {
+            p++;
+            while (p < end && buf[p] >= '0' && buf[p] <= '9') {
+                mantissa = mantissa * 10 + (buf[p] - '0');
+                digits++;
+                fraction++;
+                p++;
+            }
+        }
+        boolean valid = (digits > 0 && digits <= MAX_DIGITS);
+        // Process the exponent.
+        int exponent = 0;
+        if (valid && p < end && (buf[p] == 'e' || buf[p] == 'E')) {
+            p++;
+            boolean expNegative = false;
+            if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+                expNegative = (buf[p] == '-');
+                p++;
+            }
+            int expStart = p;
+            while (p < end && buf[p] >= '0' && buf[p] <= '9' && exponent < 1000) {
+                exponent = exponent * 10 + (buf[p] - '0');
+                p++;
+            }
+            valid = (p > expStart);
+            if (expNegative)
+                exponent = -exponent;
+        }
+        exponent -= fraction;
+        double retVal;
+        if (valid && p == end && mantissa <= (1L << 53) && exponent >= -22 && exponent <= 22) {
+            retVal = (double) mantissa;
+            retVal = (exponent < 0 ? retVal / POWERS[-exponent] : retVal * POWERS[exponent]);
+            if (negative)
+                retVal = -retVal;
+        } else
+            retVal = Double.parseDouble(this.getString(i));
+        return retVal;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.stream.close();
+    }
+
+}
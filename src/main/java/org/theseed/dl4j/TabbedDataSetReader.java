@@ -4,9 +4,12 @@
 package org.theseed.dl4j;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -29,14 +32,23 @@ import org.theseed.io.TabbedLineReader;
  * dataset can then be used to train or test a model.  The default batch size is 100.  This can
  * be modified by the client.
  *
+ * When the input is a file or stream and the features are scalars, the data lines are parsed directly from the
+ * input bytes by a {@link TabbedByteParser}, and the feature values are stored in a primitive buffer with no
+ * intermediate strings.  The header is still processed by a {@link TabbedLineReader}, so the column specifications
+ * work the same way in both cases.
+ *
  * @author Bruce Parrello
  *
  */
 public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>, AutoCloseable {
 
     // FIELDS
-    /** input tabbed file */
+    /** input tabbed file (contains only the header if a byte parser is in use) */
     private TabbedLineReader reader;
+    /** byte parser for the data lines, or NULL if the line reader is used */
+    private TabbedByteParser parser;
+    /** UTF-8 bytes of each valid label, for matching against the input */
+    private byte[][] labelBytes;
     /** list of valid labels */
     private ArrayList<String> labels;
     /** map of label columns for regression labels; array index is column index, value is label column */
@@ -55,9 +67,15 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
     private int width;
     /** number of meta-data columns */
     private int metaWidth;
+    /** TRUE if quantile sketches of the features should be built as batches are read */
+    private boolean sketching;
+    /** quantile sketches of the features read so far, or NULL if none have been built */
+    private QuantileSketch[] sketches;
 
     /** null array index */
     private static final int ANULL = -1;
+    /** initial row capacity for batches read by the byte parser */
+    private static final int INITIAL_ROWS = 1024;
 
     /** This is a simple class for holding a feature, its metadata, and its label. */
     protected class Entry {
@@ -85,7 +103,7 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
      * @throws IOException
      */
     public TabbedDataSetReader(File file, String labelCol, List<String> labels, List<String> metaCols) throws IOException {
-        this.reader = (file == null ? new TabbedLineReader(System.in) : new TabbedLineReader(file));
+        this.open(file);
         this.setup(labelCol, labels, metaCols);
     }
 
@@ -100,7 +118,7 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
      * @throws IOException
      */
     public TabbedDataSetReader(InputStream stream, String labelCol, List<String> labels, List<String> metaCols) throws IOException {
-        this.reader = new TabbedLineReader(stream);
+        this.open(stream);
         this.setup(labelCol, labels, metaCols);
     }
 
@@ -114,7 +132,7 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
      * @throws IOException
      */
     public TabbedDataSetReader(File file, String labelCol, List<String> labels) throws IOException {
-        this.reader = (file == null ? new TabbedLineReader(System.in) : new TabbedLineReader(file));
+        this.open(file);
         this.setup(labelCol, labels, Collections.emptyList());
     }
 
@@ -128,7 +146,7 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
      * @throws IOException
      */
     public TabbedDataSetReader(InputStream stream, String labelCol, List<String> labels) throws IOException {
-        this.reader = new TabbedLineReader(stream);
+        this.open(stream);
         this.setup(labelCol, labels, Collections.emptyList());
     }
 
@@ -141,7 +159,7 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
      * @throws IOException
      */
     public TabbedDataSetReader(File file, List<String> metaCols) throws IOException {
-        this.reader = (file == null ? new TabbedLineReader(System.in) : new TabbedLineReader(file));
+        this.open(file);
         this.setup(null, Collections.emptyList(), metaCols);
     }
 
@@ -154,7 +172,7 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
      * @throws IOException
      */
     public TabbedDataSetReader(InputStream stream, List<String> metaCols) throws IOException {
-        this.reader = new TabbedLineReader(stream);
+        this.open(stream);
         this.setup(null, Collections.emptyList(), metaCols);
     }
 
@@ -173,6 +191,50 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
         this.setup(labelCol, labels, metaCols);
     }
 
+    /**
+     * Open the input file.  If byte parsing is supported, the file is read by a byte parser; otherwise, it is
+     * read by a line reader.
+     *
+     * @param file		the file containing the data, or NULL to use the standard input
+     *
+     * @throws IOException
+     */
+    private void open(File file) throws IOException {
+        if (file == null)
+            this.open(System.in);
+        else if (this.isByteParsable())
+            this.open(new FileInputStream(file));
+        else
+            this.reader = new TabbedLineReader(file);
+    }
+
+    /**
+     * Open the input stream.  If byte parsing is supported, the header line is read by the byte parser and
+     * passed to a line reader for column processing.
+     *
+     * @param stream	the stream containing the data
+     *
+     * @throws IOException
+     */
+    private void open(InputStream stream) throws IOException {
+        if (this.isByteParsable()) {
+            this.parser = new TabbedByteParser(stream);
+            this.reader = new TabbedLineReader(Collections.singletonList(this.parser.getHeader()));
+        } else
+            this.reader = new TabbedLineReader(stream);
+    }
+
+    /**
+     * @return TRUE if the feature columns can be parsed directly from the input bytes
+     *
+     * Byte parsing requires each feature column to be a single number, so it is only used by this class.  A
+     * subclass that does not override {@link #stringToVector}, {@link #getChannels}, {@link #storeFeature}, or
+     * {@link #createFeatureArray} can override this method to enable it.
+     */
+    protected boolean isByteParsable() {
+        return (this.getClass() == TabbedDataSetReader.class);
+    }
+
     /**
      * Initialize the fields of this object.
      *
@@ -185,10 +247,16 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
     protected void setup(String labelCol, List<String> labels, List<String> metaCols) throws IOException {
         // Save the label array.
         this.labels = new ArrayList<String>(labels);
+        this.labelBytes = new byte[labels.size()][];
+        for (int i = 0; i < this.labelBytes.length; i++)
+            this.labelBytes[i] = labels.get(i).getBytes(StandardCharsets.UTF_8);
         // Find the field where we expect the labels to be.
         this.labelIdx = (labelCol != null ? this.reader.findField(labelCol) : ANULL);
         // Denote we are not normalizing.
         this.normalizer = null;
+        // Denote we are not sketching.
+        this.sketching = false;
+        this.sketches = null;
         // Denote everything is an input.
         this.width = this.reader.size();
         this.metaWidth = 0;
@@ -249,7 +317,17 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
      */
     @Override
     public boolean hasNext() {
-        return this.reader.hasNext();
+        boolean retVal;
+        if (this.parser == null)
+            retVal = this.reader.hasNext();
+        else {
+            try {
+                retVal = this.parser.hasNext();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return retVal;
     }
 
     /**
@@ -268,6 +346,18 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
      */
     @Override
     public DataSet next() {
+        DataSet retVal;
+        if (this.parser != null)
+            retVal = this.nextParsed();
+        else
+            retVal = this.nextLines();
+        return retVal;
+    }
+
+    /**
+     * @return the next batch of data, read using the line reader
+     */
+    private DataSet nextLines() {
         // Get the number of fields in each record.
         int n = this.reader.size();
         // Remember if we have metadata and/or labels.
@@ -317,16 +407,124 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
             row++;
         }
         this.getBuffer().clear();
-        // Build the dataset.
+        return this.buildDataSet(features, (haveLabels ? labels : null), metaData);
+    }
+
+    /**
+     * @return the next batch of data, read using the byte parser
+     */
+    private DataSet nextParsed() {
+        // Get the number of fields in each record.
+        final int n = this.reader.size();
+        final int width = this.getWidth();
+        final int nLabels = this.labels.size();
+        // Remember if we have metadata and/or labels.
+        boolean haveMeta = (this.getMetaWidth() > 0);
+        boolean haveLabels = false;
+        // Allocate the buffers.  These will grow as needed.
+        int capacity = Math.min(this.batchSize, INITIAL_ROWS);
+        double[] featureData = new double[capacity * width];
+        double[] labelData = new double[capacity * nLabels];
+        ArrayList<String> metaData = (haveMeta ? new ArrayList<String>(capacity) : null);
+        String[] metaFields = new String[this.getMetaWidth()];
+        int rows = 0;
+        try {
+            while (rows < this.batchSize && this.parser.nextLine()) {
+                if (rows >= capacity) {
+                    capacity = (int) Math.min(2L * capacity, this.batchSize);
+                    featureData = Arrays.copyOf(featureData, capacity * width);
+                    labelData = Arrays.copyOf(labelData, capacity * nLabels);
+                }
+                int pos = rows * width;
+                final int labelBase = rows * nLabels;
+                for (int i = 0; i < n; i++) {
+                    if (i == this.labelIdx) {
+                        // We have a class label.  Find its index.
+                        int label = 0;
+                        while (label < nLabels && ! this.parser.matches(i, this.labelBytes[label]))
+                            label++;
+                        if (label >= nLabels)
+                            throw new IllegalArgumentException("Invalid label " + this.parser.getString(i));
+                        labelData[labelBase + label] = 1.0;
+                        haveLabels = true;
+                    } else if (this.labelMap[i] >= 0) {
+                        labelData[labelBase + this.labelMap[i]] = this.parser.getDouble(i);
+                        haveLabels = true;
+                    } else if (this.metaColFlag[i] != ANULL) {
+                        // Here we have a metadata column.
+                        metaFields[this.metaColFlag[i]] = this.parser.getString(i);
+                    } else {
+                        // Here we have a feature column.
+                        featureData[pos++] = this.parser.getDouble(i);
+                    }
+                }
+                if (haveMeta) metaData.add(String.join("\t", metaFields));
+                rows++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // Create the feature and label arrays.
+        INDArray features;
+        INDArray labels;
+        if (rows == 0) {
+            features = Nd4j.createUninitialized(new int[] { 0, 1, 1, width });
+            labels = Nd4j.zeros(0, nLabels);
+        } else {
+            if (rows < capacity) {
+                featureData = Arrays.copyOf(featureData, rows * width);
+                labelData = Arrays.copyOf(labelData, rows * nLabels);
+            }
+            features = Nd4j.create(featureData, new long[] { rows, 1, 1, width }, Nd4j.defaultFloatingPointType());
+            labels = Nd4j.create(labelData, new long[] { rows, nLabels }, Nd4j.defaultFloatingPointType());
+        }
+        return this.buildDataSet(features, (haveLabels ? labels : null), metaData);
+    }
+
+    /**
+     * Assemble a batch of data into a dataset and apply the normalizer and the quantile sketches.
+     *
+     * @param features	feature array
+     * @param labels	label array, or NULL if there are no labels
+     * @param metaData	list of metadata strings, or NULL if there is no metadata
+     *
+     * @return the dataset for the batch
+     */
+    private DataSet buildDataSet(INDArray features, INDArray labels, List<String> metaData) {
         DataSet retVal = new DataSet();
         retVal.setFeatures(features);
-        if (haveLabels) retVal.setLabels(labels);
-        if (haveMeta) retVal.setExampleMetaData(metaData);
+        if (labels != null) retVal.setLabels(labels);
+        if (metaData != null) retVal.setExampleMetaData(metaData);
         if (this.normalizer != null)
             this.normalizer.transform(retVal);
+        if (this.sketching)
+            this.updateSketches(retVal.getFeatures());
         return retVal;
     }
 
+    /**
+     * Add the feature values in a batch to the quantile sketches.  The features are flattened in the same way
+     * as for a random forest, so there is one sketch per flattened input column.
+     *
+     * @param features	feature array for the batch
+     */
+    private void updateSketches(INDArray features) {
+        long rows = features.size(0);
+        if (rows > 0) {
+            INDArray flat = features.reshape(rows, features.length() / rows);
+            double[][] values = flat.toDoubleMatrix();
+            if (this.sketches == null) {
+                this.sketches = new QuantileSketch[values[0].length];
+                for (int j = 0; j < this.sketches.length; j++)
+                    this.sketches[j] = new QuantileSketch();
+            }
+            for (double[] row : values) {
+                for (int j = 0; j < row.length; j++)
+                    this.sketches[j].update(row[j]);
+            }
+        }
+    }
+
     /**
      * This is the method for formatting features into an example row.  Each input column
      * is converted to a vector of floating-point numbers and stored in the specified row of the
@@ -416,6 +614,27 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
         return this;
     }
 
+    /**
+     * Specify whether or not to build quantile sketches of the features in the batches read.  Turning sketching
+     * on discards any sketches already built.
+     *
+     * @param sketching		TRUE to build quantile sketches of the features, else FALSE
+     */
+    public TabbedDataSetReader setSketching(boolean sketching) {
+        this.sketching = sketching;
+        if (sketching)
+            this.sketches = null;
+        return this;
+    }
+
+    /**
+     * @return the quantile sketches of the features read since sketching was turned on, one per flattened input
+     * 		   column, or NULL if no batches have been sketched
+     */
+    public QuantileSketch[] getSketches() {
+        return this.sketches;
+    }
+
     /**
      * @return the number of sensor values per feature
      */
@@ -461,6 +680,13 @@ public class TabbedDataSetReader implements Iterable<DataSet>, Iterator<DataSet>
     @Override
     public void close() {
         this.reader.close();
+        if (this.parser != null) {
+            try {
+                this.parser.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
 }
@@ -5,18 +5,36 @@ package org.theseed.dl4j.decision;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.theseed.utils.IDescribable;
 
 /**
  * A decision tree is a serializable data structure that can be used to classify an item based on a set of
  * features.  Each node of the tree specifies a feature and a threshold.  Values less than or equal to the
  * threshold are classified on the left and those greater than the threshold are classified on the right.
- * At the leaf level an output class is specified.
+ * At the leaf level an output class is specified.  Splits are chosen to maximize the decrease in an impurity
+ * criterion, which is normally entropy.
+ *
+ * When a node has enough training rows, its two subtrees are built as parallel fork-join tasks in the common
+ * pool, which is shared with the tree-level parallelism in the random forest.  Each parallel subtree gets its
+ * own feature selector factory, so the tree built does not depend on the thread timing.  At very large nodes,
+ * the candidate features are also evaluated in parallel.
+ *
+ * Alternatively, the tree can be built one level at a time.  This avoids deep recursion, and it allows the
+ * histograms for all the open nodes at a level to be filled with a single pass over each feature.
  *
  * @author Bruce Parrello
  *
@@ -36,13 +54,36 @@ public class DecisionTree implements Serializable {
     private int size;
     /** hyperparameters */
     private transient RandomForest.Parms parms;
-    /** feature selector factory for training */
-    private transient TreeFeatureSelectorFactory factory;
+    /** node counter for training */
+    private transient AtomicInteger nodeCounter;
+    /** compiled form of the tree for prediction */
+    private transient volatile FlatTree flatTree;
+    /** optimized predictor for the tree, or NULL to use the compiled form */
+    private transient volatile ITreePredictor predictor;
+    /** fraction of out-of-bag training rows predicted correctly, or 0 if unknown */
+    private transient double oobAccuracy;
     /** log base 2 factor */
     private static double LOG2BASE = Math.log(2.0);
     /** object ID for serialization */
     private static final long serialVersionUID = 4184229432605504479L;
 
+    /**
+     * Enumerator for tree construction strategies.
+     */
+    public static enum BuildMode implements IDescribable {
+        DEPTH {
+            @Override
+            public String getDescription() {
+                return "Build each subtree completely before building its sibling.";
+            }
+        }, LEVEL {
+            @Override
+            public String getDescription() {
+                return "Build all the nodes at each depth before going to the next.";
+            }
+        };
+    }
+
     /**
      * This nested class represents a tree node.
      */
@@ -50,7 +91,7 @@ public class DecisionTree implements Serializable {
 
         /** serialization ID */
         private static final long serialVersionUID = 6974234637504879773L;
-        /** entropy value at this node */
+        /** impurity value at this node (normally entropy) */
         private double entropy;
 
         protected Node(double entropy) {
@@ -130,6 +171,33 @@ public class DecisionTree implements Serializable {
             return retVal;
         }
 
+        /**
+         * Return the child of this node relevant to the specified training matrix row.
+         *
+         * @param data		training matrix containing the row
+         * @param row		index of the row to test
+         *
+         * @return the child node for the selected feature
+         */
+        public Node choose(TrainingMatrix data, int row) {
+            double value = data.getValue(row, this.iFeature);
+            Node retVal = (value > limit ? this.right : this.left);
+            return retVal;
+        }
+
+        /**
+         * Return the child of this node relevant to a row of feature values.
+         *
+         * @param row		array of feature values for the row
+         *
+         * @return the child node for the selected feature
+         */
+        public Node choose(double[] row) {
+            double value = row[this.iFeature];
+            Node retVal = (value > limit ? this.right : this.left);
+            return retVal;
+        }
+
         /**
          * Attach the left-side child.
          *
@@ -162,6 +230,27 @@ public class DecisionTree implements Serializable {
             return this.iFeature;
         }
 
+        /**
+         * @return the threshold for this node (values less than or equal go left)
+         */
+        public double getLimit() {
+            return this.limit;
+        }
+
+        /**
+         * @return the left-side child node
+         */
+        public Node getLeft() {
+            return this.left;
+        }
+
+        /**
+         * @return the right-side child node
+         */
+        public Node getRight() {
+            return this.right;
+        }
+
         @Override
         protected void addImpact(INDArray vector) {
             vector.putScalar(this.iFeature, this.gain + vector.getDouble(this.iFeature));
@@ -229,28 +318,166 @@ public class DecisionTree implements Serializable {
 
     }
 
+    /**
+     * This task builds a subtree in parallel with its sibling.
+     */
+    private class SubtreeTask extends RecursiveTask<Node> {
+
+        /** serialization ID */
+        private static final long serialVersionUID = -6390127513296466312L;
+        /** training rows for the subtree */
+        private final NodeRows rows;
+        /** depth of the subtree root */
+        private final int depth;
+        /** entropy of the training rows */
+        private final double entropy;
+        /** feature selector factory for the subtree */
+        private final TreeFeatureSelectorFactory factory;
+        /** feature selector for the subtree root, or NULL if it has not been chosen yet */
+        private final FeatureSelector selector;
+
+        /**
+         * Create a subtree task.
+         *
+         * @param rows		training rows to be classified by the subtree
+         * @param depth		depth of the subtree root
+         * @param entropy	entropy of the training rows
+         * @param factory	feature selector factory for the subtree
+         */
+        protected SubtreeTask(NodeRows rows, int depth, double entropy, TreeFeatureSelectorFactory factory) {
+            this.rows = rows;
+            this.depth = depth;
+            this.entropy = entropy;
+            this.factory = factory;
+            this.selector = DecisionTree.this.prepareSibling(rows, depth, entropy, factory);
+        }
+
+        @Override
+        protected Node compute() {
+            return DecisionTree.this.computeNode(this.rows, this.depth, this.entropy, this.factory, this.selector);
+        }
+
+    }
+
+    /**
+     * This object describes a node waiting to be built by the level-wise builder.
+     */
+    private static class OpenNode {
+
+        /** training rows for the node */
+        private final NodeRows rows;
+        /** entropy of the training rows */
+        private final double entropy;
+        /** parent choice node, or NULL if this is the root */
+        private final ChoiceNode parent;
+        /** TRUE if this is the left child of the parent, else FALSE */
+        private final boolean leftSide;
+        /** feature selector for the node */
+        private FeatureSelector selector;
+        /** best split found for the node */
+        private Splitter best;
+
+        /**
+         * Create a descriptor for a node waiting to be built.
+         *
+         * @param rows		training rows for the node
+         * @param entropy	entropy of the training rows
+         * @param parent	parent choice node, or NULL for the root
+         * @param leftSide	TRUE if this is the left child of the parent
+         */
+        protected OpenNode(NodeRows rows, double entropy, ChoiceNode parent, boolean leftSide) {
+            this.rows = rows;
+            this.entropy = entropy;
+            this.parent = parent;
+            this.leftSide = leftSide;
+        }
+
+        /**
+         * Attach a completed node to the parent.
+         *
+         * @param node	node built from this descriptor
+         */
+        protected void attach(Node node) {
+            if (this.leftSide)
+                this.parent.setLeft(node);
+            else
+                this.parent.setRight(node);
+        }
+
+    }
+
     /**
      * Create a decision tree for the specified dataset.
      *
      * @param dataset	dataset to use for training the tree
      * @param parms		hyperparameter specification
-     * @param finder	split point finder
+     * @param factory	feature selector factory
      */
     public DecisionTree(DataSet dataset, RandomForest.Parms parms, TreeFeatureSelectorFactory factory) {
-        this.nClasses = dataset.numOutcomes();
-        this.nFeatures = dataset.numInputs();
+        this(new TrainingMatrix(dataset), parms, factory);
+    }
+
+    /**
+     * Create a decision tree for the specified training matrix.
+     *
+     * @param data		training matrix to use for training the tree
+     * @param parms		hyperparameter specification
+     * @param factory	feature selector factory
+     */
+    public DecisionTree(TrainingMatrix data, RandomForest.Parms parms, TreeFeatureSelectorFactory factory) {
+        this(data, IntStream.range(0, data.size()).toArray(), parms, factory);
+    }
+
+    /**
+     * Create a decision tree for a sample of the rows in the specified training matrix.  The sample array
+     * is used as the tree's row buffer, so it will be reordered.
+     *
+     * @param data		training matrix containing the sample
+     * @param rows		indices of the rows to use for training the tree (duplicates are allowed)
+     * @param parms		hyperparameter specification
+     * @param factory	feature selector factory
+     */
+    public DecisionTree(TrainingMatrix data, int[] rows, RandomForest.Parms parms, TreeFeatureSelectorFactory factory) {
+        this(data, new NodeRows(data, rows, parms.getImpurity()), parms, factory);
+    }
+
+    /**
+     * Create a decision tree for a set of training rows.
+     *
+     * @param data		training matrix containing the rows
+     * @param rows		training rows to use
+     * @param parms		hyperparameter specification
+     * @param factory	feature selector factory
+     */
+    private DecisionTree(TrainingMatrix data, NodeRows rows, RandomForest.Parms parms, TreeFeatureSelectorFactory factory) {
+        this.nClasses = data.numClasses();
+        this.nFeatures = data.numFeatures();
         this.parms = parms;
-        this.factory = factory;
-        this.size = 0;
-        // Compute the number of features to use in each tree.
-        int arraySize = parms.getNumFeatures();
-        if (this.nFeatures < arraySize) arraySize = this.nFeatures;
-        // Compute the starting entropy.
-        double entropy = DecisionTree.entropy(dataset);
-        // Split the dataset into rows.
-        List<DataSet> rows = dataset.asList();
+        this.nodeCounter = new AtomicInteger();
+        // Compute the starting impurity.
+        double entropy = rows.getImpurity().compute(rows.getLabelCounts());
         // Create the root node.
-        this.root = this.computeNode(rows, 0, entropy);
+        if (parms.getBuildMode() == BuildMode.LEVEL)
+            this.root = this.buildLevels(rows, entropy, factory);
+        else
+            this.root = this.computeNode(rows, 0, entropy, factory, null);
+        this.size = this.nodeCounter.get();
+        this.nodeCounter = null;
+    }
+
+    /**
+     * Create a decision tree from an existing node structure.  This is used when loading a saved model.
+     *
+     * @param nFeatures		number of input features
+     * @param nClasses		number of output classes
+     * @param root			root node of the tree
+     * @param size			number of nodes in the tree
+     */
+    protected DecisionTree(int nFeatures, int nClasses, Node root, int size) {
+        this.nFeatures = nFeatures;
+        this.nClasses = nClasses;
+        this.root = root;
+        this.size = size;
     }
 
     /**
@@ -262,7 +489,7 @@ public class DecisionTree implements Serializable {
         double total = dataset.numExamples();
         double retVal = 0.0;
         if (total > 0) {
-            INDArray labelCounts = getLabelSums(dataset);
+            double[] labelCounts = getLabelSums(dataset);
             retVal = labelEntropy(labelCounts);
         }
         return retVal;
@@ -274,10 +501,24 @@ public class DecisionTree implements Serializable {
      * @param labelSum	array of label counts
      */
     public static double labelEntropy(INDArray labelSum) {
-        double total = labelSum.sumNumber().doubleValue();
+        return labelEntropy(labelSum.toDoubleVector());
+    }
+
+    /**
+     * @return the entropy indicated by an array of label sums
+     *
+     * The sums need not be whole numbers, so the entropy is computed exactly rather than from the integer-count
+     * table used by the tree builder.
+     *
+     * @param labelSum	array of label sums
+     */
+    public static double labelEntropy(double[] labelSum) {
+        double total = 0.0;
+        for (double sum : labelSum)
+            total += sum;
         double retVal = 0.0;
-        for (int i = 0; i < labelSum.columns(); i++) {
-            double pI = labelSum.getDouble(i) / total;
+        for (double sum : labelSum) {
+            double pI = sum / total;
             if (pI > 0.0)
                 retVal -= pI * Math.log(pI);
         }
@@ -286,125 +527,274 @@ public class DecisionTree implements Serializable {
     }
 
     /**
-     * Recursively compute the tree node from the specified list of features.
+     * @return the total of an array of label counts
      *
-     * @param rows				dataset rows to be classified by this node
+     * @param labelCounts	array of label counts
+     */
+    public static int total(int[] labelCounts) {
+        int retVal = 0;
+        for (int count : labelCounts)
+            retVal += count;
+        return retVal;
+    }
+
+    /**
+     * Recursively compute the tree node from the specified set of training rows.
+     *
+     * @param rows				training rows to be classified by this node
      * @param depth				depth of the node in question
      * @param entropy			entropy of the set
+     * @param factory			feature selector factory for this subtree
+     * @param selector			feature selector for this node, or NULL to get one from the factory
      *
      * @return a node for deciding this set
      */
-    private Node computeNode(List<DataSet> rows, int depth, double entropy) {
+    private Node computeNode(NodeRows rows, int depth, double entropy, TreeFeatureSelectorFactory factory,
+            FeatureSelector selector) {
         Node retVal;
         // Is this a leaf?
-        if (rows.size() <= this.parms.getLeafLimit() || entropy <= 0.0 || depth >= this.parms.getMaxDepth()) {
+        if (this.isLeaf(rows, depth, entropy)) {
             // Yes.  Assign the best label value.
             retVal = createLeaf(rows, entropy);
         } else {
-            // Loop through the features, looking for the one that creates the greatest entropy decrease.
-            // These variables contain the data we need to split the dataset for the children.
-            Splitter best = Splitter.NULL;
-            // Loop through the features left to examine.
-            FeatureSelector selector = this.factory.getSelector(depth);
-            SplitPointFinder finder = selector.getFinder();
-            for (int i : selector.getFeaturesToUse()) {
-                Splitter test = finder.computeSplit(i, this.nClasses, rows, entropy);
-                if (test.compareTo(best) < 0)
-                    best = test;
-            }
+            // Find the feature that creates the greatest entropy decrease.
+            if (selector == null)
+                selector = factory.getSelector(depth);
+            Splitter best = this.findBestSplit(rows, entropy, selector);
             // If we were not able to gain anything, this is a leaf.
             if (best == Splitter.NULL)
                 retVal = this.createLeaf(rows, entropy);
             else {
                 // Here we can split the node.
                 ChoiceNode newNode = best.createNode(entropy);
-                // Split the incoming dataset.
-                List<DataSet> left = new ArrayList<DataSet>(best.getLeftCount());
-                List<DataSet> right = new ArrayList<DataSet>(best.getRightCount());
-                for (DataSet row : rows) {
-                    if (best.splitsLeft(row))
-                        left.add(row);
-                    else
-                        right.add(row);
+                // Split the incoming rows.
+                NodeRows[] children = rows.split(best);
+                if (rows.size() >= this.parms.getForkLimit()) {
+                    // Here the node is big enough to build the children in parallel.  The tasks are created
+                    // before either is started, so the larger child can count its sibling's histograms safely.
+                    SubtreeTask leftTask = new SubtreeTask(children[0], depth + 1, best.getLeftEntropy(), factory.split());
+                    SubtreeTask rightTask = new SubtreeTask(children[1], depth + 1, best.getRightEntropy(), factory.split());
+                    ForkJoinTask.invokeAll(leftTask, rightTask);
+                    newNode.setLeft(leftTask.join());
+                    newNode.setRight(rightTask.join());
+                } else {
+                    // Create the left node.
+                    newNode.setLeft(this.computeNode(children[0], depth + 1, best.getLeftEntropy(), factory, null));
+                    // Create the right node.
+                    newNode.setRight(this.computeNode(children[1], depth + 1, best.getRightEntropy(), factory, null));
                 }
-                // Create the left node.
-                newNode.setLeft(this.computeNode(left, depth + 1, best.getLeftEntropy()));
-                // Create the right node.  Here we can reuse the old bitmap.
-                newNode.setRight(this.computeNode(right, depth + 1, best.getRightEntropy()));
+                // The children are done with this node's histograms.
+                rows.releaseHistograms();
                 // Return the new node.
                 retVal = newNode;
             }
         }
-        this.size++;
+        this.nodeCounter.incrementAndGet();
         return retVal;
     }
 
     /**
-     * @return the mean value of the specified feature in the list of dataset rows
+     * @return TRUE if a set of training rows should be made into a leaf without searching for a split
      *
-     * @param rows	list of dataset rows
-     * @param i		column index of the desired feature
+     * @param rows			training rows for the node
+     * @param depth			depth of the node
+     * @param entropy		entropy of the rows
      */
-    public static double featureMean(List<DataSet> rows, int i) {
-        int count = 0;
-        double retVal = 0.0;
-        for (DataSet row : rows) {
-            retVal += row.getFeatures().getDouble(i);
-            count++;
+    private boolean isLeaf(NodeRows rows, int depth, double entropy) {
+        return rows.size() <= this.parms.getLeafLimit() || entropy <= 0.0 || depth >= this.parms.getMaxDepth();
+    }
+
+    /**
+     * Prepare a child node that is about to be built in parallel with its sibling.  If the child derives its
+     * histograms from its sibling's, we choose its feature selector now and fix the sibling histograms for the
+     * selected features only, so that the child never reads the sibling's rows while they are being partitioned.
+     *
+     * @param rows			training rows for the child
+     * @param depth			depth of the child
+     * @param entropy		entropy of the rows
+     * @param factory		feature selector factory for the child's subtree
+     *
+     * @return the feature selector chosen for the child, or NULL if none was chosen
+     */
+    private FeatureSelector prepareSibling(NodeRows rows, int depth, double entropy, TreeFeatureSelectorFactory factory) {
+        FeatureSelector retVal = null;
+        if (rows.hasSibling()) {
+            int[] features = new int[0];
+            if (! this.isLeaf(rows, depth, entropy)) {
+                retVal = factory.getSelector(depth);
+                if (retVal.getFinder().usesHistograms())
+                    features = retVal.getFeaturesToUse();
+            }
+            rows.fixSiblingHistograms(features);
         }
-        if (count > 0) retVal /= count;
         return retVal;
     }
 
     /**
-     * @return a leaf node for a dataset
+     * Find the best split for a set of training rows among the features proposed by a selector.
+     *
+     * @param rows			training rows to split
+     * @param entropy		entropy of the rows
+     * @param selector		feature selector for the rows' node
      *
-     * @param rows	dataset represented by the leaf
-     * @param entropy	entropy of the dataset
+     * @return the best splitter found, or Splitter.NULL if no split produces a gain
      */
-    private Node createLeaf(List<DataSet> rows, double entropy) {
-        int label = DecisionTree.bestLabel(rows);
-        this.size++;
-        return new LeafNode(label, entropy);
+    private Splitter findBestSplit(NodeRows rows, double entropy, FeatureSelector selector) {
+        Splitter retVal = Splitter.NULL;
+        SplitPointFinder finder = selector.getFinder();
+        int[] features = selector.getFeaturesToUse();
+        if (rows.size() >= this.parms.getSearchLimit() && features.length > 1) {
+            // Here the node is big enough to evaluate the features in parallel.  The reduction keeps the
+            // earlier feature in a tie, so the result is the same as for the sequential loop.
+            Splitter test = Arrays.stream(features).parallel()
+                    .mapToObj(i -> finder.computeSplit(i, rows, entropy))
+                    .reduce((a, b) -> (b.compareTo(a) < 0 ? b : a)).get();
+            if (test.compareTo(retVal) < 0)
+                retVal = test;
+        } else {
+            // Loop through the features left to examine.
+            for (int i : features) {
+                Splitter test = finder.computeSplit(i, rows, entropy);
+                if (test.compareTo(retVal) < 0)
+                    retVal = test;
+            }
+        }
+        return retVal;
     }
 
     /**
-     * @return the index of the most popular label in the list of dataset rows
+     * Build the tree one level at a time.  At each level, the leaves are closed off, and the histograms needed
+     * by the remaining nodes are filled in with one pass per feature.  Then each node is split, and its children
+     * form the next level.
      *
-     * @param rows	list of dataset rows
+     * @param rows		training rows for the root
+     * @param entropy	entropy of the training rows
+     * @param factory	feature selector factory for the tree
+     *
+     * @return the root node of the tree
      */
-    private static int bestLabel(List<DataSet> rows) {
-        int retVal = 0;
-        if (rows.size() > 0) {
-            INDArray labelSums = rows.get(0).getLabels().dup();
-            for (int i = 1; i < rows.size(); i++)
-                labelSums.addi(rows.get(i).getLabels());
-            retVal = computeBest(labelSums);
+    private Node buildLevels(NodeRows rows, double entropy, TreeFeatureSelectorFactory factory) {
+        Node retVal = null;
+        List<OpenNode> level = new ArrayList<OpenNode>();
+        level.add(new OpenNode(rows, entropy, null, false));
+        // This list contains the row sets split at the previous level.  Their histograms are released once
+        // the current level has been searched.
+        List<NodeRows> splitRows = new ArrayList<NodeRows>();
+        for (int depth = 0; ! level.isEmpty(); depth++) {
+            // Close off the leaves and get feature selectors for the remaining nodes.
+            List<OpenNode> searchNodes = new ArrayList<OpenNode>(level.size());
+            for (OpenNode open : level) {
+                if (this.isLeaf(open.rows, depth, open.entropy))
+                    retVal = this.closeNode(open, this.createLeaf(open.rows, open.entropy), retVal);
+                else {
+                    open.selector = factory.getSelector(depth);
+                    searchNodes.add(open);
+                }
+            }
+            // Fill in the histograms.  For each feature, we count the bins for every node that needs them in one
+            // pass.  The nodes are in buffer order, so the pass is sequential.
+            Set<Integer> histoFeatures = new LinkedHashSet<Integer>();
+            for (OpenNode open : searchNodes) {
+                if (open.selector.getFinder().usesHistograms()) {
+                    for (int i : open.selector.getFeaturesToUse())
+                        histoFeatures.add(i);
+                }
+            }
+            for (int iFeature : histoFeatures) {
+                List<NodeRows> countRows = new ArrayList<NodeRows>(searchNodes.size());
+                for (OpenNode open : searchNodes) {
+                    if (open.selector.getFinder().usesHistograms() && open.rows.needsHistogram(iFeature))
+                        countRows.add(open.rows);
+                }
+                NodeRows.countHistograms(iFeature, countRows);
+            }
+            // Find the best split for each node.
+            for (OpenNode open : searchNodes)
+                open.best = this.findBestSplit(open.rows, open.entropy, open.selector);
+            for (NodeRows parentRows : splitRows)
+                parentRows.releaseHistograms();
+            splitRows.clear();
+            // Split the nodes to form the next level.
+            List<OpenNode> nextLevel = new ArrayList<OpenNode>(searchNodes.size() * 2);
+            for (OpenNode open : searchNodes) {
+                if (open.best == Splitter.NULL)
+                    retVal = this.closeNode(open, this.createLeaf(open.rows, open.entropy), retVal);
+                else {
+                    ChoiceNode newNode = open.best.createNode(open.entropy);
+                    retVal = this.closeNode(open, newNode, retVal);
+                    NodeRows[] children = open.rows.split(open.best);
+                    nextLevel.add(new OpenNode(children[0], open.best.getLeftEntropy(), newNode, true));
+                    nextLevel.add(new OpenNode(children[1], open.best.getRightEntropy(), newNode, false));
+                    splitRows.add(open.rows);
+                }
+            }
+            level = nextLevel;
         }
         return retVal;
     }
 
+    /**
+     * Attach a completed node to its parent in the level-wise builder.
+     *
+     * @param open		descriptor of the node
+     * @param node		completed node
+     * @param root		root node found so far
+     *
+     * @return the root node of the tree
+     */
+    private Node closeNode(OpenNode open, Node node, Node root) {
+        Node retVal = root;
+        if (open.parent == null)
+            retVal = node;
+        else
+            open.attach(node);
+        this.nodeCounter.incrementAndGet();
+        return retVal;
+    }
+
+    /**
+     * @return a leaf node for a set of training rows
+     *
+     * @param rows		training rows represented by the leaf
+     * @param entropy	entropy of the rows
+     */
+    private Node createLeaf(NodeRows rows, double entropy) {
+        int label = bestLabel(rows);
+        this.nodeCounter.incrementAndGet();
+        return new LeafNode(label, entropy);
+    }
+
     /**
      * @return the index of the most popular label in the dataset
      *
      * @param dataset	dataset to process
      */
     public static int bestLabel(DataSet dataset) {
-        INDArray labelSums = getLabelSums(dataset);
+        double[] labelSums = getLabelSums(dataset);
         int retVal = computeBest(labelSums);
         return retVal;
     }
 
     /**
-     * @return the highest value in a vector of label sums
+     * @return the index of the most popular label in a set of training rows
+     *
+     * @param rows		training rows to process
+     */
+    public static int bestLabel(NodeRows rows) {
+        int[] labelCounts = rows.getLabelCounts(Splitter.getLabelBuffers(rows.numClasses())[0]);
+        return computeBest(labelCounts);
+    }
+
+    /**
+     * @return the index of the highest value in an array of label sums
      *
-     * @param labelSums		vector to search
+     * @param labelSums		array to search
      */
-    private static int computeBest(INDArray labelSums) {
+    private static int computeBest(double[] labelSums) {
         int retVal = 0;
-        double max = labelSums.getDouble(0);
-        for (int i = 1; i < labelSums.columns(); i++) {
-            double val = labelSums.getDouble(i);
+        double max = labelSums[0];
+        for (int i = 1; i < labelSums.length; i++) {
+            double val = labelSums[i];
             if (val > max) {
                 retVal = i;
                 max = val;
@@ -414,12 +804,29 @@ public class DecisionTree implements Serializable {
     }
 
     /**
-     * @return a vector containing the number of occurrences of each label in the dataset
+     * @return the index of the highest value in an array of label counts
+     *
+     * @param labelCounts	array to search
+     */
+    public static int computeBest(int[] labelCounts) {
+        int retVal = 0;
+        int max = labelCounts[0];
+        for (int i = 1; i < labelCounts.length; i++) {
+            if (labelCounts[i] > max) {
+                retVal = i;
+                max = labelCounts[i];
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return an array containing the number of occurrences of each label in the dataset
      *
      * @param dataset	dataset of interest
      */
-    private static INDArray getLabelSums(DataSet dataset) {
-        return dataset.getLabels().sum(0);
+    private static double[] getLabelSums(DataSet dataset) {
+        return dataset.getLabels().sum(0).toDoubleVector();
     }
 
     /**
@@ -438,6 +845,87 @@ public class DecisionTree implements Serializable {
         return curr.getiClass();
     }
 
+    /**
+     * @return the index of the predicted label for a row of feature values
+     *
+     * @param row		array of feature values for the row
+     */
+    public int predict(double[] row) {
+        return this.getPredictor().predict(row);
+    }
+
+    /**
+     * Add this tree's vote for a row of feature values to a vote array.  Unlike
+     * {@link RandomForest#predictInto(double[], int[])}, this method does not clear the array first, so the votes
+     * of several trees can be accumulated in it.  This method does not allocate any memory, and is thread-safe as
+     * long as no two threads use the same vote array.
+     *
+     * @param row			array of feature values for the row
+     * @param votes			array of vote counts, indexed by label, to be incremented
+     *
+     * @return the index of the predicted label
+     */
+    public int addVote(double[] row, int[] votes) {
+        int retVal = this.getPredictor().predict(row);
+        votes[retVal]++;
+        return retVal;
+    }
+
+    /**
+     * @return the fastest available predictor for this tree
+     */
+    public ITreePredictor getPredictor() {
+        ITreePredictor retVal = this.predictor;
+        if (retVal == null)
+            retVal = this.getFlatTree();
+        return retVal;
+    }
+
+    /**
+     * Specify an optimized predictor for this tree, such as one generated by a {@link TreeCompiler}.  The predictor
+     * must produce the same results as the tree.
+     *
+     * @param predictor		new predictor, or NULL to revert to the compiled form
+     */
+    public void setPredictor(ITreePredictor predictor) {
+        this.predictor = predictor;
+    }
+
+    /**
+     * @return the compiled form of this tree, building it if necessary
+     */
+    public FlatTree getFlatTree() {
+        FlatTree retVal = this.flatTree;
+        if (retVal == null) {
+            retVal = new FlatTree(this);
+            this.flatTree = retVal;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the root node of this tree
+     */
+    protected Node getRoot() {
+        return this.root;
+    }
+
+    /**
+     * @return the index of the predicted label for the specified training matrix row
+     *
+     * @param data		training matrix containing the row
+     * @param row		index of the row whose label is desired
+     */
+    public int predict(TrainingMatrix data, int row) {
+        Node current = root;
+        while (current instanceof ChoiceNode) {
+            ChoiceNode curr = (ChoiceNode) current;
+            current = curr.choose(data, row);
+        }
+        LeafNode curr = (LeafNode) current;
+        return curr.getiClass();
+    }
+
     /**
      * Add this tree's vote to the predictions of a dataset.
      *
@@ -445,11 +933,29 @@ public class DecisionTree implements Serializable {
      * @param labels	array in which to put label votes
      */
     public void vote(INDArray features, INDArray labels) {
-        for (int i = 0; i < features.rows(); i++) {
-            // Compute the prediction for this row.
-            int label = this.predict(features, i);
-            // Add our vote to its label output.
-            labels.putScalar(i, label, labels.getDouble(i, label) + 1.0);
+        final int nRows = features.rows();
+        if (nRows > 0)
+            this.vote(RandomForest.rowMajorData(features), nRows, features.columns(), labels);
+    }
+
+    /**
+     * Add this tree's vote to the predictions for feature rows that have already been extracted into a primitive
+     * array.  A caller polling several trees can use this method to extract the feature rows only once.
+     *
+     * @param data		array of feature rows in row-major order
+     * @param nRows		number of rows
+     * @param width		number of feature values per row
+     * @param labels	array in which to put label votes
+     */
+    public void vote(double[] data, int nRows, int width, INDArray labels) {
+        if (nRows > 0) {
+            ITreePredictor predictor = this.getPredictor();
+            // Compute the votes in a local array and then add them all at once.
+            double[] votes = new double[nRows * this.nClasses];
+            for (int i = 0; i < nRows; i++)
+                votes[i * this.nClasses + predictor.predict(data, i * width)] = 1.0;
+            INDArray voteArray = Nd4j.create(votes, new long[] { nRows, this.nClasses });
+            labels.addi(voteArray.castTo(labels.dataType()));
         }
     }
 
@@ -481,6 +987,20 @@ public class DecisionTree implements Serializable {
         return this.size;
     }
 
+    /**
+     * @return the number of input features
+     */
+    public int getNumFeatures() {
+        return this.nFeatures;
+    }
+
+    /**
+     * @return the number of output classes
+     */
+    public int getNumClasses() {
+        return this.nClasses;
+    }
+
     /**
      * @return the score of this tree, which is a function of the leaf entropy
      */
@@ -488,4 +1008,21 @@ public class DecisionTree implements Serializable {
         return this.root.getScore();
     }
 
+    /**
+     * @return the fraction of this tree's out-of-bag training rows that it predicted correctly, or 0 if this
+     * 		   is not known (for example, if the tree was loaded from a file)
+     */
+    public double getOobAccuracy() {
+        return this.oobAccuracy;
+    }
+
+    /**
+     * Specify the out-of-bag accuracy of this tree.
+     *
+     * @param oobAccuracy	fraction of the out-of-bag training rows predicted correctly
+     */
+    protected void setOobAccuracy(double oobAccuracy) {
+        this.oobAccuracy = oobAccuracy;
+    }
+
 }
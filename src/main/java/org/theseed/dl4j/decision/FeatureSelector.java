@@ -68,18 +68,31 @@ public abstract class FeatureSelector {
     }
 
     /**
-     * This feature selector returns an array of features to select from using the mean split point finder.
+     * This feature selector returns an array of features to select from using a specified split point finder.
+     * The default is the mean split point finder.
      */
     public static class Multiple extends FeatureSelector {
 
         /**
-         * Construct a multiple-feature selector.
+         * Construct a multiple-feature selector that uses the mean split point finder.
          *
          * @param idxes			array of input features to select from
          * @param nSelect		nubmer of features to select from the available list
          * @param randomizer	random-number generator to use
          */
         public Multiple(int[] idxes, int nSelect, Random randomizer) {
+            this(idxes, nSelect, randomizer, SplitPointFinder.Type.MEAN);
+        }
+
+        /**
+         * Construct a multiple-feature selector.
+         *
+         * @param idxes			array of input features to select from
+         * @param nSelect		nubmer of features to select from the available list
+         * @param randomizer	random-number generator to use
+         * @param finderType	type of split point finder to use
+         */
+        public Multiple(int[] idxes, int nSelect, Random randomizer, SplitPointFinder.Type finderType) {
             // Get all the possible feature indices in a modifiable array.
             int[] range = idxes.clone();
             // Insure our selection size is in range.
@@ -92,7 +105,7 @@ public abstract class FeatureSelector {
                 choices[i] = range[rand + i];
                 range[rand + i] = range[i];
             }
-            this.setup(choices, new SplitPointFinder.Mean());
+            this.setup(choices, finderType.create(randomizer));
         }
 
     }
@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+/**
+ * This object is a compiled form of a decision tree used for fast prediction.  The choice nodes are stored in
+ * parallel primitive arrays instead of as a graph of node objects.  For each choice node we have the index of the
+ * feature to test, the threshold value, and the indices of the left and right children.  A child index that is
+ * negative is a leaf, and its bitwise complement is the index of the predicted class.  So, the prediction loop
+ * is a simple array walk with no type checks or virtual calls.
+ *
+ * The choice nodes are stored in depth-first order with the left child immediately after its parent, so that
+ * a path through the tree tends to stay within a few cache lines.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FlatTree implements ITreePredictor {
+
+    // FIELDS
+    /** index of the feature tested by each choice node */
+    private final int[] features;
+    /** threshold for each choice node (values less than or equal go left) */
+    private final double[] thresholds;
+    /** left child of each choice node (negative values are complemented leaf classes) */
+    private final int[] lefts;
+    /** right child of each choice node (negative values are complemented leaf classes) */
+    private final int[] rights;
+    /** encoded root node */
+    private final int root;
+
+    /**
+     * Compile a decision tree.
+     *
+     * @param tree	source decision tree
+     */
+    public FlatTree(DecisionTree tree) {
+        DecisionTree.Node rootNode = tree.getRoot();
+        int n = countChoices(rootNode);
+        this.features = new int[n];
+        this.thresholds = new double[n];
+        this.lefts = new int[n];
+        this.rights = new int[n];
+        int[] next = new int[] { 0 };
+        this.root = this.store(rootNode, next);
+    }
+
+    /**
+     * @return the number of choice nodes in a subtree
+     *
+     * @param node	root of the subtree
+     */
+    private static int countChoices(DecisionTree.Node node) {
+        int retVal = 0;
+        if (node instanceof DecisionTree.ChoiceNode) {
+            DecisionTree.ChoiceNode choice = (DecisionTree.ChoiceNode) node;
+            retVal = 1 + countChoices(choice.getLeft()) + countChoices(choice.getRight());
+        }
+        return retVal;
+    }
+
+    /**
+     * Store a subtree in the arrays.
+     *
+     * @param node	root of the subtree
+     * @param next	single-element array containing the next free choice node index
+     *
+     * @return the encoded index of the subtree root
+     */
+    private int store(DecisionTree.Node node, int[] next) {
+        int retVal;
+        if (node instanceof DecisionTree.ChoiceNode) {
+            DecisionTree.ChoiceNode choice = (DecisionTree.ChoiceNode) node;
+            retVal = next[0]++;
+            this.features[retVal] = choice.getFeatureIdx();
+            this.thresholds[retVal] = choice.getLimit();
+            this.lefts[retVal] = this.store(choice.getLeft(), next);
+            this.rights[retVal] = this.store(choice.getRight(), next);
+        } else
+            retVal = ~((DecisionTree.LeafNode) node).getiClass();
+        return retVal;
+    }
+
+    @Override
+    public int predict(double[] data, int offset) {
+        int node = this.root;
+        while (node >= 0)
+            node = (data[offset + this.features[node]] > this.thresholds[node] ? this.rights[node] : this.lefts[node]);
+        return ~node;
+    }
+
+    /**
+     * @return the number of choice nodes
+     */
+    public int size() {
+        return this.features.length;
+    }
+
+    /**
+     * @return the encoded root node; a negative value is the complement of the class predicted by a leaf root
+     */
+    public int getRoot() {
+        return this.root;
+    }
+
+    /**
+     * @return the feature index for a choice node
+     *
+     * @param node	index of the choice node
+     */
+    public int getFeature(int node) {
+        return this.features[node];
+    }
+
+    /**
+     * @return the threshold for a choice node
+     *
+     * @param node	index of the choice node
+     */
+    public double getThreshold(int node) {
+        return this.thresholds[node];
+    }
+
+    /**
+     * @return the encoded left child of a choice node
+     *
+     * @param node	index of the choice node
+     */
+    public int getLeft(int node) {
+        return this.lefts[node];
+    }
+
+    /**
+     * @return the encoded right child of a choice node
+     *
+     * @param node	index of the choice node
+     */
+    public int getRight(int node) {
+        return this.rights[node];
+    }
+
+}
@@ -0,0 +1,495 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads and writes random forests in a compact binary format.  All values are little-endian.  The file
+ * begins with a header containing the magic number, the format version, the number of input features, the number of
+ * labels, and the number of trees, followed by a table containing the file position of each tree record.  Each tree
+ * record begins on an 8-byte boundary, so any tree can be located without reading the ones before it.  The trees are
+ * written in order of out-of-bag accuracy, so the file order is the early-exit voting order.  Trees whose accuracy
+ * is not known keep their order in the forest.
+ *
+ * A tree record begins with six integers:  the number of input features, the number of classes, the node count,
+ * the number of choice nodes, the number of leaves, and the encoded root.  These are followed by the thresholds,
+ * impurity gains, and entropies of the choice nodes and the entropies of the leaves (all doubles), and then by the
+ * feature indices and encoded left and right children of the choice nodes and the classes of the leaves (all
+ * integers).  The choice nodes are in depth-first order with the left child immediately after its parent.  An
+ * encoded child that is negative is a leaf, and its bitwise complement is the index of the leaf.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ForestFile {
+
+    // FIELDS
+    /** magic number at the start of a binary forest file (the bytes spell "RFST") */
+    public static final int MAGIC = 0x54534652;
+    /** current format version */
+    public static final int VERSION = 1;
+    /** byte order of the file */
+    public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    /** number of bytes in the fixed part of the header */
+    protected static final int HEADER_BYTES = 6 * Integer.BYTES;
+    /** number of bytes in the fixed part of a tree record */
+    protected static final int TREE_HEADER_BYTES = 6 * Integer.BYTES;
+
+    /**
+     * This class contains the flattened form of a decision tree.
+     */
+    protected static class TreeRecord {
+
+        /** number of input features */
+        private final int nFeatures;
+        /** number of classes */
+        private final int nClasses;
+        /** number of nodes */
+        private final int size;
+        /** feature index of each choice node */
+        private final int[] features;
+        /** threshold of each choice node */
+        private final double[] thresholds;
+        /** impurity gain of each choice node */
+        private final double[] gains;
+        /** entropy of each choice node */
+        private final double[] entropies;
+        /** encoded left child of each choice node */
+        private final int[] lefts;
+        /** encoded right child of each choice node */
+        private final int[] rights;
+        /** class of each leaf */
+        private final int[] leafClasses;
+        /** entropy of each leaf */
+        private final double[] leafEntropies;
+        /** encoded root node */
+        private final int root;
+
+        /**
+         * Flatten a decision tree.
+         *
+         * @param tree	decision tree to flatten
+         */
+        protected TreeRecord(DecisionTree tree) {
+            this.nFeatures = tree.getNumFeatures();
+            this.nClasses = tree.getNumClasses();
+            this.size = tree.size();
+            // Count the nodes of each type.
+            int[] counts = new int[2];
+            count(tree.getRoot(), counts);
+            this.features = new int[counts[0]];
+            this.thresholds = new double[counts[0]];
+            this.gains = new double[counts[0]];
+            this.entropies = new double[counts[0]];
+            this.lefts = new int[counts[0]];
+            this.rights = new int[counts[0]];
+            this.leafClasses = new int[counts[1]];
+            this.leafEntropies = new double[counts[1]];
+            // Store the nodes.
+            this.root = this.store(tree.getRoot(), new int[2]);
+        }
+
+        /**
+         * Read a flattened decision tree from a buffer.
+         *
+         * @param buffer	buffer containing the tree record
+         * @param pos		position of the tree record in the buffer
+         */
+        protected TreeRecord(ByteBuffer buffer, int pos) {
+            this.nFeatures = buffer.getInt(pos);
+            this.nClasses = buffer.getInt(pos + 4);
+            this.size = buffer.getInt(pos + 8);
+            final int nChoices = buffer.getInt(pos + 12);
+            final int nLeaves = buffer.getInt(pos + 16);
+            this.root = buffer.getInt(pos + 20);
+            ByteBuffer view = buffer.duplicate().order(ORDER);
+            view.position(pos + TREE_HEADER_BYTES);
+            this.thresholds = new double[nChoices];
+            this.gains = new double[nChoices];
+            this.entropies = new double[nChoices];
+            this.leafEntropies = new double[nLeaves];
+            view.asDoubleBuffer().get(this.thresholds).get(this.gains).get(this.entropies).get(this.leafEntropies);
+            view.position(view.position() + Double.BYTES * (3 * nChoices + nLeaves));
+            this.features = new int[nChoices];
+            this.lefts = new int[nChoices];
+            this.rights = new int[nChoices];
+            this.leafClasses = new int[nLeaves];
+            view.asIntBuffer().get(this.features).get(this.lefts).get(this.rights).get(this.leafClasses);
+        }
+
+        /**
+         * Count the choice nodes and leaves in a subtree.
+         *
+         * @param node		root of the subtree
+         * @param counts	two-element array containing the choice node and leaf counts, to be updated
+         */
+        private static void count(DecisionTree.Node node, int[] counts) {
+            if (node instanceof DecisionTree.ChoiceNode) {
+                DecisionTree.ChoiceNode choice = (DecisionTree.ChoiceNode) node;
+                counts[0]++;
+                count(choice.getLeft(), counts);
+                count(choice.getRight(), counts);
+            } else
+                counts[1]++;
+        }
+
+        /**
+         * Store a subtree in the arrays.
+         *
+         * @param node	root of the subtree
+         * @param next	two-element array containing the next free choice node and leaf indices
+         *
+         * @return the encoded index of the subtree root
+         */
+        private int store(DecisionTree.Node node, int[] next) {
+            int retVal;
+            if (node instanceof DecisionTree.ChoiceNode) {
+                DecisionTree.ChoiceNode choice = (DecisionTree.ChoiceNode) node;
+                retVal = next[0]++;
+                this.features[retVal] = choice.getFeatureIdx();
+                this.thresholds[retVal] = choice.getLimit();
+                this.gains[retVal] = choice.getGain();
+                this.entropies[retVal] = choice.getEntropy();
+                this.lefts[retVal] = this.store(choice.getLeft(), next);
+                this.rights[retVal] = this.store(choice.getRight(), next);
+            } else {
+                DecisionTree.LeafNode leaf = (DecisionTree.LeafNode) node;
+                int idx = next[1]++;
+                this.leafClasses[idx] = leaf.getiClass();
+                this.leafEntropies[idx] = leaf.getEntropy();
+                retVal = ~idx;
+            }
+            return retVal;
+        }
+
+        /**
+         * @return the number of bytes in this record, including the padding to an 8-byte boundary
+         */
+        protected int bytes() {
+            int nChoices = this.features.length;
+            int nLeaves = this.leafClasses.length;
+            int retVal = TREE_HEADER_BYTES + Double.BYTES * (3 * nChoices + nLeaves) + Integer.BYTES * (3 * nChoices + nLeaves);
+            return align(retVal);
+        }
+
+        /**
+         * Write this record to a buffer at the buffer's current position.  The buffer must be little-endian.
+         *
+         * @param buffer	output buffer
+         */
+        protected void write(ByteBuffer buffer) {
+            int start = buffer.position();
+            buffer.putInt(this.nFeatures).putInt(this.nClasses).putInt(this.size);
+            buffer.putInt(this.features.length).putInt(this.leafClasses.length).putInt(this.root);
+            for (double[] array : List.of(this.thresholds, this.gains, this.entropies, this.leafEntropies)) {
+                for (double value : array)
+                    buffer.putDouble(value);
+            }
+            for (int[] array : List.of(this.features, this.lefts, this.rights, this.leafClasses)) {
+                for (int value : array)
+                    buffer.putInt(value);
+            }
+            while (buffer.position() < start + this.bytes())
+                buffer.put((byte) 0);
+        }
+
+        /**
+         * @return the decision tree described by this record
+         */
+        protected DecisionTree createTree() {
+            DecisionTree.Node rootNode = this.createNode(this.root);
+            return new DecisionTree(this.nFeatures, this.nClasses, rootNode, this.size);
+        }
+
+        /**
+         * @return the subtree rooted at the specified node
+         *
+         * @param node	encoded index of the subtree root
+         */
+        private DecisionTree.Node createNode(int node) {
+            DecisionTree.Node retVal;
+            if (node < 0) {
+                int idx = ~node;
+                retVal = new DecisionTree.LeafNode(this.leafClasses[idx], this.leafEntropies[idx]);
+            } else {
+                DecisionTree.ChoiceNode choice = new DecisionTree.ChoiceNode(this.features[node], this.thresholds[node],
+                        this.entropies[node], this.gains[node]);
+                choice.setLeft(this.createNode(this.lefts[node]));
+                choice.setRight(this.createNode(this.rights[node]));
+                retVal = choice;
+            }
+            return retVal;
+        }
+
+    }
+
+    /**
+     * @return a byte count rounded up to an 8-byte boundary
+     *
+     * @param bytes		byte count to round
+     */
+    protected static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    /**
+     * @return the number of bytes in the header of a file with the specified number of trees
+     *
+     * @param nTrees	number of trees in the forest
+     */
+    protected static int headerBytes(int nTrees) {
+        return HEADER_BYTES + Long.BYTES * nTrees;
+    }
+
+    /**
+     * Write a random forest to a file.  The trees are written in order of out-of-bag accuracy, but the forest
+     * itself is not changed.
+     *
+     * @param forest	random forest to write
+     * @param file		output file
+     *
+     * @throws IOException
+     */
+    public static void write(RandomForest forest, File file) throws IOException {
+        List<DecisionTree> trees = RandomForest.sortByAccuracy(forest.getTrees());
+        final int nTrees = trees.size();
+        // Flatten the trees and compute their file positions.
+        List<TreeRecord> records = new ArrayList<TreeRecord>(nTrees);
+        ByteBuffer header = ByteBuffer.allocate(headerBytes(nTrees)).order(ORDER);
+        header.putInt(MAGIC).putInt(VERSION).putInt(forest.getNumFeatures()).putInt(forest.getNumLabels())
+                .putInt(nTrees).putInt(0);
+        long pos = header.capacity();
+        for (DecisionTree tree : trees) {
+            TreeRecord record = new TreeRecord(tree);
+            records.add(record);
+            header.putLong(pos);
+            pos += record.bytes();
+        }
+        header.flip();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            for (TreeRecord record : records) {
+                ByteBuffer buffer = ByteBuffer.allocate(record.bytes()).order(ORDER);
+                record.write(buffer);
+                buffer.flip();
+                writeFully(channel, buffer);
+            }
+        }
+    }
+
+    /**
+     * Write the remaining contents of a buffer to a channel.
+     *
+     * @param channel	output channel
+     * @param buffer	buffer to write
+     *
+     * @throws IOException
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Fill a buffer from a channel.
+     *
+     * @param channel	input channel
+     * @param buffer	buffer to fill
+     *
+     * @return TRUE if the buffer was filled, FALSE if end-of-file was reached first
+     *
+     * @throws IOException
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int n = 0;
+        while (buffer.hasRemaining() && n >= 0)
+            n = channel.read(buffer);
+        return ! buffer.hasRemaining();
+    }
+
+    /**
+     * @return TRUE if the specified file begins with the binary forest magic number
+     *
+     * @param file		file to check
+     *
+     * @throws IOException
+     */
+    public static boolean isForestFile(File file) throws IOException {
+        boolean retVal = false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES).order(ORDER);
+            if (readFully(channel, buffer))
+                retVal = (buffer.getInt(0) == MAGIC);
+        }
+        return retVal;
+    }
+
+    /**
+     * Read a random forest from a file.
+     *
+     * @param file		input file
+     *
+     * @return the random forest stored in the file
+     *
+     * @throws IOException
+     */
+    public static RandomForest read(File file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Model file " + file + " is too large.");
+            buffer = ByteBuffer.allocate((int) size).order(ORDER);
+            if (! readFully(channel, buffer))
+                throw new IOException("Unexpected end of file in " + file + ".");
+        }
+        checkHeader(buffer, file);
+        return parse(buffer);
+    }
+
+    /**
+     * Memory-map a forest file for reading and verify its header.
+     *
+     * @param file		input file
+     *
+     * @return a little-endian read-only buffer mapped to the file
+     *
+     * @throws IOException
+     */
+    protected static ByteBuffer map(File file) throws IOException {
+        ByteBuffer retVal;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Model file " + file + " is too large to map.");
+            retVal = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ORDER);
+        }
+        checkHeader(retVal, file);
+        return retVal;
+    }
+
+    /**
+     * Create a random forest from a buffer containing a forest file.  The header must already have been verified.
+     *
+     * @param buffer	buffer containing the file, in little-endian order
+     *
+     * @return the random forest stored in the buffer
+     */
+    protected static RandomForest parse(ByteBuffer buffer) {
+        final int nTrees = buffer.getInt(16);
+        List<DecisionTree> trees = new ArrayList<DecisionTree>(nTrees);
+        for (int t = 0; t < nTrees; t++) {
+            int pos = (int) buffer.getLong(HEADER_BYTES + Long.BYTES * t);
+            trees.add(new TreeRecord(buffer, pos).createTree());
+        }
+        return new RandomForest(buffer.getInt(8), buffer.getInt(12), trees);
+    }
+
+    /**
+     * Verify the header of a forest file, the bounds of its tree records, and the indices stored in their nodes.
+     * Once this method succeeds, every tree record can be read without leaving the buffer, and every tree can
+     * be walked from the root to a leaf without leaving its arrays.
+     *
+     * @param buffer	buffer containing the file
+     * @param file		source file, for error messages
+     *
+     * @throws IOException
+     */
+    protected static void checkHeader(ByteBuffer buffer, File file) throws IOException {
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+            throw new IOException(file + " is not a random forest model file.");
+        int version = buffer.getInt(4);
+        if (version > VERSION)
+            throw new IOException("Model file " + file + " has unsupported version " + version + ".");
+        final int nTrees = buffer.getInt(16);
+        if (nTrees < 0)
+            throw new IOException("Model file " + file + " has an invalid tree count of " + nTrees + ".");
+        final long capacity = buffer.capacity();
+        final long headerEnd = HEADER_BYTES + (long) Long.BYTES * nTrees;
+        if (capacity < headerEnd)
+            throw new IOException("Model file " + file + " is truncated.");
+        for (int t = 0; t < nTrees; t++) {
+            long pos = buffer.getLong(HEADER_BYTES + Long.BYTES * t);
+            if (pos < headerEnd || pos > capacity - TREE_HEADER_BYTES)
+                throw new IOException("Model file " + file + " has an invalid position for tree " + t + ".");
+            int nChoices = buffer.getInt((int) pos + 12);
+            int nLeaves = buffer.getInt((int) pos + 16);
+            if (nChoices < 0 || nLeaves < 0)
+                throw new IOException("Model file " + file + " has invalid node counts for tree " + t + ".");
+            long end = pos + TREE_HEADER_BYTES + (long) (Double.BYTES + Integer.BYTES) * nLeaves
+                    + 3L * (Double.BYTES + Integer.BYTES) * nChoices;
+            if (end > capacity)
+                throw new IOException("Model file " + file + " is truncated in tree " + t + ".");
+            checkNodes(buffer, (int) pos, file, t);
+        }
+    }
+
+    /**
+     * Verify the node indices of a tree record whose bounds have already been checked.  Each feature index must
+     * be less than the forest's feature count, and each leaf class less than its label count.  Each encoded child
+     * must be a valid leaf or a choice node that comes after its parent, so the tree cannot contain a cycle.
+     *
+     * @param buffer	buffer containing the file
+     * @param pos		position of the tree record
+     * @param file		source file, for error messages
+     * @param t			index of the tree, for error messages
+     *
+     * @throws IOException
+     */
+    private static void checkNodes(ByteBuffer buffer, int pos, File file, int t) throws IOException {
+        final int nFeatures = buffer.getInt(8);
+        final int nLabels = buffer.getInt(12);
+        final int nChoices = buffer.getInt(pos + 12);
+        final int nLeaves = buffer.getInt(pos + 16);
+        if (! validChild(buffer.getInt(pos + 20), -1, nChoices, nLeaves))
+            throw new IOException("Model file " + file + " has an invalid root in tree " + t + ".");
+        final int featurePos = pos + TREE_HEADER_BYTES + Double.BYTES * (3 * nChoices + nLeaves);
+        final int leftPos = featurePos + Integer.BYTES * nChoices;
+        final int rightPos = leftPos + Integer.BYTES * nChoices;
+        final int classPos = rightPos + Integer.BYTES * nChoices;
+        for (int i = 0; i < nChoices; i++) {
+            int feature = buffer.getInt(featurePos + Integer.BYTES * i);
+            if (feature < 0 || feature >= nFeatures)
+                throw new IOException("Model file " + file + " has an invalid feature index in node " + i
+                        + " of tree " + t + ".");
+            if (! validChild(buffer.getInt(leftPos + Integer.BYTES * i), i, nChoices, nLeaves)
+                    || ! validChild(buffer.getInt(rightPos + Integer.BYTES * i), i, nChoices, nLeaves))
+                throw new IOException("Model file " + file + " has an invalid child index in node " + i
+                        + " of tree " + t + ".");
+        }
+        for (int i = 0; i < nLeaves; i++) {
+            int iClass = buffer.getInt(classPos + Integer.BYTES * i);
+            if (iClass < 0 || iClass >= nLabels)
+                throw new IOException("Model file " + file + " has an invalid class in leaf " + i + " of tree "
+                        + t + ".");
+        }
+    }
+
+    /**
+     * @return TRUE if an encoded child is a valid leaf or a choice node after its parent, else FALSE
+     *
+     * @param child		encoded child index
+     * @param parent	index of the parent choice node, or -1 for the root
+     * @param nChoices	number of choice nodes in the tree
+     * @param nLeaves	number of leaves in the tree
+     */
+    private static boolean validChild(int child, int parent, int nChoices, int nLeaves) {
+        boolean retVal;
+        if (child < 0)
+            retVal = (~child < nLeaves);
+        else
+            retVal = (child > parent && child < nChoices);
+        return retVal;
+    }
+
+}
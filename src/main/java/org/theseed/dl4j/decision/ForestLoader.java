@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object loads the trees of a random forest model file incrementally.  The model file must be in the binary
+ * format described by {@link ForestFile}, whose table of tree positions allows each tree to be read independently.
+ * The file is memory-mapped, so only the header is read when the loader is created.  Trees can then be loaded on
+ * demand or by background threads.
+ *
+ * The active trees are the longest run of loaded trees at the start of the file.  A forest containing only the
+ * active trees is available at any time, so scoring can begin with the first few trees while the rest are still
+ * loading.  All the methods of this object are thread-safe.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ForestLoader {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(ForestLoader.class);
+    /** mapped model file */
+    private final ByteBuffer buffer;
+    /** number of input features */
+    private final int nFeatures;
+    /** number of output labels */
+    private final int nLabels;
+    /** trees loaded so far (NULL for trees not yet loaded) */
+    private final AtomicReferenceArray<DecisionTree> trees;
+    /** index of the next tree for the background threads to load */
+    private final AtomicInteger nextTree;
+    /** number of active trees */
+    private volatile int active;
+    /** forest containing the active trees, or NULL if it has not been created */
+    private RandomForest forest;
+
+    /**
+     * Open a model file for incremental loading.
+     *
+     * @param modelFile		binary model file written by {@link RandomForest#save(File)}
+     *
+     * @throws IOException
+     */
+    public ForestLoader(File modelFile) throws IOException {
+        this.buffer = ForestFile.map(modelFile);
+        this.nFeatures = this.buffer.getInt(8);
+        this.nLabels = this.buffer.getInt(12);
+        this.trees = new AtomicReferenceArray<DecisionTree>(this.buffer.getInt(16));
+        this.nextTree = new AtomicInteger(0);
+        this.active = 0;
+        this.forest = null;
+    }
+
+    /**
+     * @return the total number of trees in the model file
+     */
+    public int getTreeCount() {
+        return this.trees.length();
+    }
+
+    /**
+     * @return the number of active trees (the number of consecutive trees loaded from the start of the file)
+     */
+    public int getActiveCount() {
+        return this.active;
+    }
+
+    /**
+     * @return TRUE if all the trees have been loaded
+     */
+    public boolean isComplete() {
+        return this.active == this.trees.length();
+    }
+
+    /**
+     * @return the specified tree, loading it if necessary
+     *
+     * @param t		index of the desired tree
+     */
+    public DecisionTree getTree(int t) {
+        DecisionTree retVal = this.trees.get(t);
+        if (retVal == null) {
+            int pos = (int) this.buffer.getLong(ForestFile.HEADER_BYTES + Long.BYTES * t);
+            DecisionTree tree = new ForestFile.TreeRecord(this.buffer, pos).createTree();
+            // If another thread beat us to it, use its copy.
+            if (this.trees.compareAndSet(t, null, tree))
+                this.advance();
+            retVal = this.trees.get(t);
+        }
+        return retVal;
+    }
+
+    /**
+     * Extend the active trees over any newly-loaded trees.
+     */
+    private synchronized void advance() {
+        int n = this.active;
+        final int total = this.trees.length();
+        while (n < total && this.trees.get(n) != null)
+            n++;
+        this.active = n;
+    }
+
+    /**
+     * Load the specified number of trees from the start of the file in the current thread, so that at least that
+     * many trees are active.
+     *
+     * @param n		number of trees that must be active
+     */
+    public void loadTrees(int n) {
+        final int limit = Math.min(n, this.trees.length());
+        for (int t = this.active; t < limit; t++)
+            this.getTree(t);
+    }
+
+    /**
+     * Start background threads to load the trees in order.  The threads are daemons, and they stop when all
+     * the trees have been loaded.
+     *
+     * @param nThreads	number of threads to start
+     */
+    public void start(int nThreads) {
+        for (int i = 0; i < nThreads; i++) {
+            Thread thread = new Thread(this::loadAll, "forest-loader-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Load trees until there are none left to claim.  This is the body of a background loader thread.
+     */
+    private void loadAll() {
+        final int total = this.trees.length();
+        try {
+            for (int t = this.nextTree.getAndIncrement(); t < total; t = this.nextTree.getAndIncrement())
+                this.getTree(t);
+        } catch (RuntimeException e) {
+            log.error("Error loading model trees: {}", e.toString());
+        }
+    }
+
+    /**
+     * @return a random forest containing the currently-active trees
+     *
+     * The forest is only rebuilt when the number of active trees changes, so this method is cheap to call for each
+     * scoring request.  If no trees are active yet, the forest will predict the first label for every row.
+     */
+    public synchronized RandomForest getForest() {
+        final int n = this.active;
+        if (this.forest == null || this.forest.getTreeCount() != n) {
+            List<DecisionTree> activeTrees = new ArrayList<DecisionTree>(n);
+            for (int t = 0; t < n; t++)
+                activeTrees.add(this.trees.get(t));
+            this.forest = new RandomForest(this.nFeatures, this.nLabels, activeTrees);
+        }
+        return this.forest;
+    }
+
+    /**
+     * @return a random forest containing all the trees, loading any that remain in the current thread
+     */
+    public RandomForest getFullForest() {
+        this.loadTrees(this.trees.length());
+        return this.getForest();
+    }
+
+}
@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+/**
+ * This method searches for the best split point among the boundaries of the feature's value bins.  The bins
+ * are computed once for the whole training matrix, so at each node we only need to build a class-count
+ * histogram over the bins and sweep through it.  This costs time proportional to the number of rows plus
+ * the number of bins, with no sorting.  If a feature has few distinct values, each value has its own bin
+ * and the result is the same as an exhaustive search.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class HistogramSplitPointFinder extends SplitPointFinder {
+
+    @Override
+    public Splitter computeSplit(int iFeature, NodeRows rows, double entropy) {
+        Splitter retVal = Splitter.NULL;
+        final int nClasses = rows.numClasses();
+        final Impurity impurity = rows.getImpurity();
+        TrainingMatrix.Bins bins = rows.getData().getBins(iFeature);
+        int[] histogram = rows.getHistogram(iFeature);
+        // These arrays will contain the label counts for each side of the split.  Initially, everything is
+        // on the right.
+        int[][] buffers = Splitter.getLabelBuffers(nClasses);
+        int[] leftLabelSums = buffers[0];
+        int[] rightLabelSums = rows.getLabelCounts(buffers[1]);
+        final int n = rows.size();
+        int leftCount = 0;
+        // Move one bin at a time from the right to the left.  After each nonempty bin, we have a candidate
+        // split point.
+        final int lastBin = bins.size() - 1;
+        for (int b = 0; b < lastBin; b++) {
+            boolean found = false;
+            int base = b * nClasses;
+            for (int k = 0; k < nClasses; k++) {
+                int count = histogram[base + k];
+                if (count > 0) {
+                    leftLabelSums[k] += count;
+                    rightLabelSums[k] -= count;
+                    leftCount += count;
+                    found = true;
+                }
+            }
+            if (found && leftCount < n) {
+                // Only build a splitter if this candidate is an improvement.
+                double gain = Splitter.computeGain(impurity, entropy, leftLabelSums, leftCount, rightLabelSums, n - leftCount);
+                if (retVal.isImprovedBy(gain, leftCount, n - leftCount))
+                    retVal = Splitter.computeSplitter(iFeature, bins.getLimit(b), impurity, entropy, leftLabelSums, rightLabelSums);
+            }
+        }
+        return retVal;
+    }
+
+    @Override
+    public boolean usesHistograms() {
+        return true;
+    }
+
+}
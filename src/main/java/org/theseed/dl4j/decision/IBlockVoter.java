@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+/**
+ * This interface defines an object that computes the forest votes for a block of feature rows.  It is used by
+ * {@link RandomForest#predictBlocks(double[], int, int, int, IBlockVoter)} to score a batch of rows in
+ * parallel blocks.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public interface IBlockVoter {
+
+    /**
+     * Compute the votes for a block of rows.  Each row's votes must be stored in the row's section of the output
+     * array, and nothing outside the block may be modified.
+     *
+     * @param data		array of feature rows in row-major order
+     * @param width		number of feature values per row
+     * @param start		index of the first row in the block
+     * @param end		index past the last row in the block
+     * @param votes		output array of votes, in row-major order with one column per label
+     */
+    public void voteBlock(double[] data, int width, int start, int end, float[] votes);
+
+}
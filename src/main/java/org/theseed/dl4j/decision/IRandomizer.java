@@ -7,8 +7,14 @@ import org.nd4j.linalg.dataset.DataSet;
 
 /**
  * This interface defines the functions required by a randomizer for choosing the training data in a random forest.
- * There is a preparation function and then a function that gets the individual data for each tree.  That last
- * function is executed in parallel, and must be coded accordingly.
+ * There is a preparation function and then functions that get the individual data for each tree.  Those last
+ * functions are executed in parallel, and must be coded accordingly.
+ *
+ * The random forest itself only uses the row indices from {@link #getRows}, which point into a single shared training
+ * matrix, so a randomizer should not copy the training set.  The dataset form from {@link #getData} is built on
+ * request from the row indices.  A randomizer that cannot supply row indices may leave {@link #getRows} unimplemented;
+ * the forest then trains each tree on the dataset from {@link #getData}, at the cost of a copy per tree and without
+ * out-of-bag scoring for the tree.
  *
  * @author Bruce Parrello
  *
@@ -31,4 +37,24 @@ public interface IRandomizer {
      */
     public DataSet getData(long seed);
 
+    /**
+     * @return the indices of the input training set rows to use for a particular tree, or NULL if this randomizer
+     * 		   only supports {@link #getData}; a row may be chosen more than once
+     *
+     * @param seed		seed for random-number generator
+     */
+    public default int[] getRows(long seed) {
+        return null;
+    }
+
+    /**
+     * @return a dataset containing the specified rows of a training set
+     *
+     * @param trainingSet	input training set
+     * @param rows			array of indices of the rows to select
+     */
+    public static DataSet selectRows(DataSet trainingSet, int[] rows) {
+        return new DataSet(trainingSet.getFeatures().getRows(rows), trainingSet.getLabels().getRows(rows));
+    }
+
 }
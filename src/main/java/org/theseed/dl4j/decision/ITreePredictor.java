@@ -0,0 +1,33 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+/**
+ * This interface defines an object that predicts the class of a row of feature values using a single decision tree.
+ * The feature values for a row are taken from a primitive array, and may be part of a larger array containing
+ * many rows.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public interface ITreePredictor {
+
+    /**
+     * @return the index of the predicted class for a row of feature values stored in a larger array
+     *
+     * @param data		array containing the row
+     * @param offset	position in the array of the row's first feature value
+     */
+    public int predict(double[] data, int offset);
+
+    /**
+     * @return the index of the predicted class for a row of feature values
+     *
+     * @param row	array of feature values for the row
+     */
+    public default int predict(double[] row) {
+        return this.predict(row, 0);
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+import org.theseed.utils.IDescribable;
+
+/**
+ * This enumeration describes the impurity criteria that can be used to evaluate splits in a decision tree.
+ * Each criterion computes the impurity of a set of rows from its label counts.  For speed, the criteria
+ * work with the weighted impurity, which is the impurity multiplied by the number of rows.  The weighted
+ * impurities of the two sides of a split can be added directly.
+ *
+ * The entropy criterion uses a precomputed table of n log n for small integers, so that it does not need
+ * to compute any logarithms in the split search.  The Gini criterion needs no logarithms at all.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public enum Impurity implements IDescribable {
+    ENTROPY {
+        @Override
+        public double weighted(int[] labelCounts, int total) {
+            double retVal = nLogN(total);
+            for (int count : labelCounts)
+                retVal -= nLogN(count);
+            return retVal / LOG2BASE;
+        }
+
+        @Override
+        public String getDescription() {
+            return "Information entropy.";
+        }
+    }, GINI {
+        @Override
+        public double weighted(int[] labelCounts, int total) {
+            double retVal = 0.0;
+            if (total > 0) {
+                double squares = 0.0;
+                for (int count : labelCounts)
+                    squares += (double) count * count;
+                retVal = total - squares / total;
+            }
+            return retVal;
+        }
+
+        @Override
+        public String getDescription() {
+            return "Gini impurity.";
+        }
+    };
+
+    /** log base 2 factor */
+    private static final double LOG2BASE = Math.log(2.0);
+    /** number of entries in the n log n table */
+    private static final int TABLE_SIZE = 65536;
+    /** table of n log n for small values of n */
+    private static final double[] N_LOG_N = new double[TABLE_SIZE];
+
+    static {
+        for (int n = 1; n < TABLE_SIZE; n++)
+            N_LOG_N[n] = n * Math.log(n);
+    }
+
+    /**
+     * @return n log n for a nonnegative integer n, with 0 log 0 taken as 0
+     *
+     * @param n		value to process
+     */
+    protected static double nLogN(int n) {
+        double retVal;
+        if (n < TABLE_SIZE)
+            retVal = N_LOG_N[n];
+        else
+            retVal = n * Math.log(n);
+        return retVal;
+    }
+
+    /**
+     * @return the impurity of a set of rows multiplied by the number of rows
+     *
+     * @param labelCounts	array of label counts for the set
+     * @param total			total of the label counts
+     */
+    public abstract double weighted(int[] labelCounts, int total);
+
+    /**
+     * @return the impurity of a set of rows
+     *
+     * @param labelCounts	array of label counts for the set
+     * @param total			total of the label counts
+     */
+    public double compute(int[] labelCounts, int total) {
+        double retVal = 0.0;
+        if (total > 0)
+            retVal = this.weighted(labelCounts, total) / total;
+        return retVal;
+    }
+
+    /**
+     * @return the impurity of a set of rows
+     *
+     * @param labelCounts	array of label counts for the set
+     */
+    public double compute(int[] labelCounts) {
+        return this.compute(labelCounts, DecisionTree.total(labelCounts));
+    }
+
+}
@@ -0,0 +1,238 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * This object makes predictions directly from a random forest model file in the binary format described by
+ * {@link ForestFile}.  The file is memory-mapped, and the trees are walked in the mapped buffer, so nothing is
+ * deserialized onto the heap.  Opening a model only requires reading the header, and multiple processes using the
+ * same model file share a single copy in the operating system's page cache.
+ *
+ * Reading the nodes through the buffer is somewhat slower than walking a heap-based {@link FlatTree}, so a
+ * long-running process that scores many rows may prefer to convert the model to a heap-based forest using
+ * {@link #toForest()}.
+ *
+ * The object is immutable once created, and all of its prediction methods are thread-safe.  The mapping remains in
+ * effect until the object is garbage-collected.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class MappedForest {
+
+    // FIELDS
+    /** mapped model file */
+    private final ByteBuffer buffer;
+    /** number of input features */
+    private final int nFeatures;
+    /** number of output labels */
+    private final int nLabels;
+    /** predictors for the trees */
+    private final MappedTree[] trees;
+    /** per-thread vote buffer for single-row predictions */
+    private static final ThreadLocal<int[]> ROW_VOTES = ThreadLocal.withInitial(() -> new int[0]);
+
+    /**
+     * This class predicts using a single tree record in the mapped buffer.  It has the same structure as a
+     * {@link FlatTree}, except that the arrays are sections of the buffer and a leaf is indexed into the leaf
+     * class array instead of encoding the class directly.
+     */
+    private static class MappedTree implements ITreePredictor {
+
+        /** mapped model file */
+        private final ByteBuffer buffer;
+        /** buffer position of the threshold array */
+        private final int thresholdPos;
+        /** buffer position of the feature index array */
+        private final int featurePos;
+        /** buffer position of the left child array */
+        private final int leftPos;
+        /** buffer position of the right child array */
+        private final int rightPos;
+        /** buffer position of the leaf class array */
+        private final int leafPos;
+        /** encoded root node */
+        private final int root;
+
+        /**
+         * Locate the arrays of a tree record.
+         *
+         * @param buffer	mapped model file
+         * @param pos		position of the tree record
+         */
+        protected MappedTree(ByteBuffer buffer, int pos) {
+            this.buffer = buffer;
+            final int nChoices = buffer.getInt(pos + 12);
+            final int nLeaves = buffer.getInt(pos + 16);
+            this.root = buffer.getInt(pos + 20);
+            this.thresholdPos = pos + ForestFile.TREE_HEADER_BYTES;
+            this.featurePos = this.thresholdPos + Double.BYTES * (3 * nChoices + nLeaves);
+            this.leftPos = this.featurePos + Integer.BYTES * nChoices;
+            this.rightPos = this.leftPos + Integer.BYTES * nChoices;
+            this.leafPos = this.rightPos + Integer.BYTES * nChoices;
+        }
+
+        @Override
+        public int predict(double[] data, int offset) {
+            final ByteBuffer buf = this.buffer;
+            int node = this.root;
+            while (node >= 0) {
+                double value = data[offset + buf.getInt(this.featurePos + (node << 2))];
+                node = (value > buf.getDouble(this.thresholdPos + (node << 3)) ? buf.getInt(this.rightPos + (node << 2))
+                        : buf.getInt(this.leftPos + (node << 2)));
+            }
+            return buf.getInt(this.leafPos + (~node << 2));
+        }
+
+    }
+
+    /**
+     * Map a random forest model file for prediction.
+     *
+     * @param modelFile		binary model file written by {@link RandomForest#save(File)}
+     *
+     * @throws IOException
+     */
+    public MappedForest(File modelFile) throws IOException {
+        this.buffer = ForestFile.map(modelFile);
+        this.nFeatures = this.buffer.getInt(8);
+        this.nLabels = this.buffer.getInt(12);
+        final int nTrees = this.buffer.getInt(16);
+        this.trees = new MappedTree[nTrees];
+        for (int t = 0; t < nTrees; t++) {
+            int pos = (int) this.buffer.getLong(ForestFile.HEADER_BYTES + Long.BYTES * t);
+            this.trees[t] = new MappedTree(this.buffer, pos);
+        }
+    }
+
+    /**
+     * @return the number of input features
+     */
+    public int getNumFeatures() {
+        return this.nFeatures;
+    }
+
+    /**
+     * @return the number of output labels
+     */
+    public int getNumLabels() {
+        return this.nLabels;
+    }
+
+    /**
+     * @return the number of trees in the forest
+     */
+    public int getTreeCount() {
+        return this.trees.length;
+    }
+
+    /**
+     * Compute the votes for a row of feature values stored in a larger array.
+     *
+     * @param data		array containing the row
+     * @param offset	position in the array of the row's first feature value
+     * @param votesOut	array to receive the vote count for each label; it must have at least one entry per label
+     *
+     * @return the index of the predicted label
+     */
+    private int vote(double[] data, int offset, int[] votesOut) {
+        for (int k = 0; k < this.nLabels; k++)
+            votesOut[k] = 0;
+        for (MappedTree tree : this.trees)
+            votesOut[tree.predict(data, offset)]++;
+        int retVal = 0;
+        for (int k = 1; k < this.nLabels; k++) {
+            if (votesOut[k] > votesOut[retVal])
+                retVal = k;
+        }
+        return retVal;
+    }
+
+    /**
+     * Predict the label for a single row of feature values.  This method does not allocate any memory once each
+     * thread's vote buffer exists.
+     *
+     * @param row	array of feature values for the row
+     *
+     * @return the index of the predicted label
+     */
+    public int predict(double[] row) {
+        int[] counts = ROW_VOTES.get();
+        if (counts.length < this.nLabels) {
+            counts = new int[this.nLabels];
+            ROW_VOTES.set(counts);
+        }
+        return this.vote(row, 0, counts);
+    }
+
+    /**
+     * Compute the votes for a single row of feature values.  This method does not allocate any memory.
+     *
+     * @param row			array of feature values for the row
+     * @param votesOut		array to receive the vote count for each label; it must have at least one entry per label
+     *
+     * @return the index of the predicted label
+     */
+    public int predictInto(double[] row, int[] votesOut) {
+        return this.vote(row, 0, votesOut);
+    }
+
+    /**
+     * Compute the votes for a set of feature rows, in the same form as {@link RandomForest#predict(INDArray)}.  The
+     * rows are scored in parallel blocks by the same loop that the heap-based forest uses.
+     *
+     * @param features	matrix of feature rows
+     *
+     * @return a matrix with one row per feature row and one column per label, containing the vote counts
+     */
+    public INDArray predict(INDArray features) {
+        INDArray retVal;
+        final int nRows = features.rows();
+        if (nRows == 0)
+            retVal = Nd4j.zeros(0, this.nLabels);
+        else {
+            double[] data = RandomForest.rowMajorData(features);
+            float[] votes = RandomForest.predictBlocks(data, nRows, features.columns(), this.nLabels, this::voteBlock);
+            retVal = Nd4j.create(votes, new long[] { nRows, this.nLabels });
+        }
+        return retVal;
+    }
+
+    /**
+     * Compute the votes for a block of rows.  Each tree votes on every row in the block before the next tree is
+     * read, so a tree's nodes stay in cache for the whole block.
+     *
+     * @param data		array of feature rows in row-major order
+     * @param width		number of feature values per row
+     * @param start		index of the first row in the block
+     * @param end		index past the last row in the block
+     * @param votes		output array of votes, in row-major order with one column per label
+     */
+    private void voteBlock(double[] data, int width, int start, int end, float[] votes) {
+        final int n = end - start;
+        int[] counts = new int[n * this.nLabels];
+        for (MappedTree tree : this.trees) {
+            for (int i = 0; i < n; i++)
+                counts[i * this.nLabels + tree.predict(data, (start + i) * width)]++;
+        }
+        final int base = start * this.nLabels;
+        for (int i = 0; i < counts.length; i++)
+            votes[base + i] = counts[i];
+    }
+
+    /**
+     * @return a heap-based random forest containing the trees in the mapped file
+     */
+    public RandomForest toForest() {
+        return ForestFile.parse(this.buffer);
+    }
+
+}
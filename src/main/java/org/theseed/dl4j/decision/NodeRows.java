@@ -0,0 +1,430 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * This object represents the set of training rows that belong to a single node of a decision tree under
+ * construction.  The rows are stored as indices into a shared training matrix.  A row index can occur more
+ * than once, as happens when the training rows are sampled with replacement.
+ *
+ * All the row sets for a tree share a single row-index buffer.  Each set owns a contiguous range of the buffer,
+ * and splitting a set partitions its range in place, so the children own the two halves of the parent's range.
+ * The partition is stable, using a scratch buffer that is also shared by the whole tree.
+ *
+ * A row set caches the class-count histograms computed for it.  When a set with cached histograms is split,
+ * the larger child derives its histograms on demand by subtracting the smaller child's histogram from the
+ * parent's, which is much cheaper than counting its own rows.  The smaller child's histogram is taken from its
+ * cache or counted from its rows.  Partitioning permutes rows only within a set's own range, so the smaller
+ * child's rows can be counted at any time, except while they are being partitioned by another thread.  When the
+ * children are built in parallel, the needed sibling histograms must be fixed in place before the children
+ * are started.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class NodeRows {
+
+    // FIELDS
+    /** training matrix containing the rows */
+    private final TrainingMatrix data;
+    /** impurity criterion for evaluating splits */
+    private final Impurity impurity;
+    /** row-index buffer shared by the whole tree */
+    private final int[] rows;
+    /** scratch buffer for partitioning, shared by the whole tree */
+    private final int[] scratch;
+    /** position in the buffer of the first row in this node */
+    private final int start;
+    /** position in the buffer past the last row in this node */
+    private final int end;
+    /** number of occurrences of each matrix row in this node, or NULL if it has not been computed */
+    private int[] membership;
+    /** cached histograms of the parent node, or NULL if this is not the larger child */
+    private Map<Integer, int[]> parentHistograms;
+    /** row set of the smaller sibling, or NULL if this is not the larger child or the sibling has been detached */
+    private NodeRows sibling;
+    /** histograms of the smaller sibling fixed before detaching it, or NULL if none have been fixed */
+    private Map<Integer, int[]> siblingHistograms;
+    /** cached class-count histograms, keyed by feature index */
+    private final Map<Integer, int[]> histograms;
+    /** log base 2 factor */
+    private static final double LOG2BASE = Math.log(2.0);
+
+    /**
+     * Create a row set containing all the rows of a training matrix, using entropy to evaluate splits.
+     *
+     * @param data		training matrix to use
+     */
+    public NodeRows(TrainingMatrix data) {
+        this(data, IntStream.range(0, data.size()).toArray(), Impurity.ENTROPY);
+    }
+
+    /**
+     * Create a row set for specific rows of a training matrix, using entropy to evaluate splits.  The row array
+     * becomes the buffer for the tree, and it will be reordered as the tree is built.
+     *
+     * @param data		training matrix containing the rows
+     * @param rows		array of indices for the rows in this set
+     */
+    public NodeRows(TrainingMatrix data, int[] rows) {
+        this(data, rows, Impurity.ENTROPY);
+    }
+
+    /**
+     * Create a row set for specific rows of a training matrix.  The row array becomes the buffer for the
+     * tree, and it will be reordered as the tree is built.
+     *
+     * @param data		training matrix containing the rows
+     * @param rows		array of indices for the rows in this set
+     * @param impurity	impurity criterion for evaluating splits
+     */
+    public NodeRows(TrainingMatrix data, int[] rows, Impurity impurity) {
+        this(data, impurity, rows, new int[rows.length], 0, rows.length);
+    }
+
+    /**
+     * Create a row set for a range of a tree's row buffer.
+     *
+     * @param data		training matrix containing the rows
+     * @param impurity	impurity criterion for evaluating splits
+     * @param rows		row-index buffer for the tree
+     * @param scratch	scratch buffer for the tree
+     * @param start		position of the first row in the set
+     * @param end		position past the last row in the set
+     */
+    private NodeRows(TrainingMatrix data, Impurity impurity, int[] rows, int[] scratch, int start, int end) {
+        this.data = data;
+        this.impurity = impurity;
+        this.rows = rows;
+        this.scratch = scratch;
+        this.start = start;
+        this.end = end;
+        this.histograms = new ConcurrentHashMap<Integer, int[]>();
+    }
+
+    /**
+     * @return the training matrix containing these rows
+     */
+    public TrainingMatrix getData() {
+        return this.data;
+    }
+
+    /**
+     * @return the row-index buffer containing this set; the set's rows are in the range from the start
+     * 			position to the end position
+     */
+    public int[] getBuffer() {
+        return this.rows;
+    }
+
+    /**
+     * @return the position in the buffer of the first row in this set
+     */
+    public int getStart() {
+        return this.start;
+    }
+
+    /**
+     * @return the position in the buffer past the last row in this set
+     */
+    public int getEnd() {
+        return this.end;
+    }
+
+    /**
+     * @return the number of rows in this set
+     */
+    public int size() {
+        return this.end - this.start;
+    }
+
+    /**
+     * @return the impurity criterion for evaluating splits
+     */
+    public Impurity getImpurity() {
+        return this.impurity;
+    }
+
+    /**
+     * @return the number of classifications
+     */
+    public int numClasses() {
+        return this.data.numClasses();
+    }
+
+    /**
+     * @return an array containing the number of occurrences of each label in this set
+     */
+    public int[] getLabelCounts() {
+        return this.getLabelCounts(new int[this.data.numClasses()]);
+    }
+
+    /**
+     * Count the occurrences of each label in this set.
+     *
+     * @param counts	array to receive the label counts; it must be zeroed on entry
+     *
+     * @return the incoming array, containing the label counts
+     */
+    public int[] getLabelCounts(int[] counts) {
+        int[] labels = this.data.getLabels();
+        for (int i = this.start; i < this.end; i++)
+            counts[labels[this.rows[i]]]++;
+        return counts;
+    }
+
+    /**
+     * @return the mean value of the specified feature in this set
+     *
+     * @param iFeature	column index of the desired feature
+     */
+    public double featureMean(int iFeature) {
+        double[] column = this.data.getColumn(iFeature);
+        double retVal = 0.0;
+        for (int i = this.start; i < this.end; i++)
+            retVal += column[this.rows[i]];
+        final int n = this.size();
+        if (n > 0) retVal /= n;
+        return retVal;
+    }
+
+    /**
+     * Split this set of rows according to a splitter.  The rows are partitioned in place, with the left-side
+     * rows first, and the original order is preserved within each side.
+     *
+     * @param splitter	splitter describing the split to make
+     *
+     * @return a two-element array containing the left-side set and the right-side set
+     */
+    public NodeRows[] split(Splitter splitter) {
+        // Left-side rows are packed at the start of our range, and right-side rows are saved in the same
+        // part of the scratch buffer and copied back afterward.
+        int nLeft = this.start;
+        int nRight = this.start;
+        for (int i = this.start; i < this.end; i++) {
+            int r = this.rows[i];
+            if (splitter.splitsLeft(this.data, r))
+                this.rows[nLeft++] = r;
+            else
+                this.scratch[nRight++] = r;
+        }
+        System.arraycopy(this.scratch, this.start, this.rows, nLeft, nRight - this.start);
+        NodeRows leftRows = new NodeRows(this.data, this.impurity, this.rows, this.scratch, this.start, nLeft);
+        NodeRows rightRows = new NodeRows(this.data, this.impurity, this.rows, this.scratch, nLeft, this.end);
+        if (! this.histograms.isEmpty()) {
+            // Link the larger child to the smaller one, so that it can derive its histograms.
+            NodeRows smaller = leftRows;
+            NodeRows larger = rightRows;
+            if (smaller.size() > larger.size()) {
+                smaller = rightRows;
+                larger = leftRows;
+            }
+            larger.parentHistograms = this.histograms;
+            larger.sibling = smaller;
+        }
+        return new NodeRows[] { leftRows, rightRows };
+    }
+
+    /**
+     * Get this set's rows sorted by the value of a feature.  If the set is large relative to the training
+     * matrix, this is done by filtering the matrix's presorted index for the feature, which costs time
+     * proportional to the size of the matrix.  Otherwise, it is cheaper to sort the rows directly.
+     *
+     * @param iFeature	index of the feature to sort on
+     *
+     * @return an array of this set's row indices (including duplicates), sorted by the feature value
+     */
+    public int[] getSortedRows(int iFeature) {
+        final int n = this.size();
+        int[] retVal = new int[n];
+        if (n * Math.log(n) / LOG2BASE >= this.data.size()) {
+            // Here we filter the presorted index.  Each row is copied out once for each time it occurs in this set.
+            int[] counts = this.getMembership();
+            int[] sorted = this.data.getSortedRows(iFeature);
+            int pos = 0;
+            for (int i = 0; pos < n; i++) {
+                int r = sorted[i];
+                for (int k = counts[r]; k > 0; k--)
+                    retVal[pos++] = r;
+            }
+        } else {
+            System.arraycopy(this.rows, this.start, retVal, 0, n);
+            TrainingMatrix.sortRows(this.data.getColumn(iFeature), retVal, n);
+        }
+        return retVal;
+    }
+
+    /**
+     * Get the membership counts for this set.  These are computed on the first call and shared by all the
+     * features searched at this node.
+     *
+     * @return an array containing the number of times each matrix row occurs in this set
+     */
+    private synchronized int[] getMembership() {
+        if (this.membership == null) {
+            this.membership = new int[this.data.size()];
+            for (int i = this.start; i < this.end; i++)
+                this.membership[this.rows[i]]++;
+        }
+        return this.membership;
+    }
+
+    /**
+     * Get the class-count histogram for the binned version of a feature.  The histogram contains a count for
+     * each combination of bin and label, with the bins varying slowest.  It is computed on the first request
+     * and cached until the histograms are released.
+     *
+     * @param iFeature	index of the feature whose histogram is desired
+     *
+     * @return an array of counts, with the count for bin B and label L at position B * nClasses + L
+     */
+    public int[] getHistogram(int iFeature) {
+        return this.histograms.computeIfAbsent(iFeature, f -> this.computeHistogram(f));
+    }
+
+    /**
+     * Compute the class-count histogram for a feature.  If this is the larger child of its parent and the
+     * parent had the histogram cached, we subtract the sibling's histogram from the parent's.  Otherwise, we
+     * count our own rows.
+     *
+     * @param iFeature	index of the feature whose histogram is desired
+     *
+     * @return the class-count histogram for the feature
+     */
+    private int[] computeHistogram(int iFeature) {
+        int[] retVal = null;
+        if (this.parentHistograms != null && this.parentHistograms.containsKey(iFeature)) {
+            int[] siblingCounts = this.getSiblingHistogram(iFeature);
+            if (siblingCounts != null) {
+                int[] parentCounts = this.parentHistograms.get(iFeature);
+                retVal = new int[parentCounts.length];
+                for (int i = 0; i < retVal.length; i++)
+                    retVal[i] = parentCounts[i] - siblingCounts[i];
+            }
+        }
+        if (retVal == null)
+            retVal = this.countHistogram(iFeature);
+        return retVal;
+    }
+
+    /**
+     * @return the smaller sibling's histogram for a feature, or NULL if it is not available
+     *
+     * @param iFeature	index of the feature whose histogram is desired
+     */
+    private int[] getSiblingHistogram(int iFeature) {
+        int[] retVal = null;
+        if (this.siblingHistograms != null)
+            retVal = this.siblingHistograms.get(iFeature);
+        NodeRows smaller = this.sibling;
+        if (retVal == null && smaller != null) {
+            retVal = smaller.histograms.get(iFeature);
+            if (retVal == null)
+                retVal = smaller.countHistogram(iFeature);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if this is the larger child of a split and can derive its histograms from its sibling's
+     */
+    public boolean hasSibling() {
+        return this.sibling != null;
+    }
+
+    /**
+     * Fix in place the smaller sibling's histograms for the specified features and then detach the sibling,
+     * so that this set never again reads the sibling's rows.  This must be called before the sibling is
+     * built by another thread.  Only features cached by the parent are processed, and the histograms are
+     * not stored in the sibling's own cache.
+     *
+     * @param features	array of indices for the features this set will search
+     */
+    public void fixSiblingHistograms(int[] features) {
+        if (this.sibling != null) {
+            Map<Integer, int[]> fixed = new HashMap<Integer, int[]>(features.length * 2);
+            for (int iFeature : features) {
+                if (this.parentHistograms.containsKey(iFeature))
+                    fixed.put(iFeature, this.getSiblingHistogram(iFeature));
+            }
+            this.siblingHistograms = fixed;
+            this.sibling = null;
+        }
+    }
+
+    /**
+     * @return the class-count histogram for a feature, computed by counting the rows in this set
+     *
+     * @param iFeature	index of the feature whose histogram is desired
+     */
+    private int[] countHistogram(int iFeature) {
+        TrainingMatrix.Bins bins = this.data.getBins(iFeature);
+        final int nClasses = this.data.numClasses();
+        int[] retVal = new int[bins.size() * nClasses];
+        byte[] codes = bins.getCodes();
+        int[] labels = this.data.getLabels();
+        for (int i = this.start; i < this.end; i++) {
+            int r = this.rows[i];
+            retVal[(codes[r] & 0xFF) * nClasses + labels[r]]++;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the histogram for a feature must be counted from this set's rows, or FALSE if it is cached
+     * 			or can be derived from the parent and sibling
+     *
+     * @param iFeature	index of the feature whose histogram is desired
+     */
+    public boolean needsHistogram(int iFeature) {
+        return ! (this.histograms.containsKey(iFeature)
+                || this.parentHistograms != null && this.parentHistograms.containsKey(iFeature)
+                        && (this.sibling != null
+                                || this.siblingHistograms != null && this.siblingHistograms.containsKey(iFeature)));
+    }
+
+    /**
+     * Count the histograms for a feature in several row sets, with a single pass over the feature's bin codes.
+     * The histograms are stored in the sets' caches.
+     *
+     * @param iFeature	index of the feature whose histograms are desired
+     * @param sets		list of row sets to process; they should be in buffer order
+     */
+    public static void countHistograms(int iFeature, List<NodeRows> sets) {
+        if (! sets.isEmpty()) {
+            TrainingMatrix data = sets.get(0).data;
+            TrainingMatrix.Bins bins = data.getBins(iFeature);
+            final int nClasses = data.numClasses();
+            final int width = bins.size() * nClasses;
+            byte[] codes = bins.getCodes();
+            int[] labels = data.getLabels();
+            for (NodeRows set : sets) {
+                int[] counts = new int[width];
+                for (int i = set.start; i < set.end; i++) {
+                    int r = set.rows[i];
+                    counts[(codes[r] & 0xFF) * nClasses + labels[r]]++;
+                }
+                set.histograms.put(iFeature, counts);
+            }
+        }
+    }
+
+    /**
+     * Release the cached histograms and the parent and sibling histograms.  This should be called when both
+     * children of this node have been built, since the histograms are no longer needed at that point.
+     */
+    public void releaseHistograms() {
+        this.histograms.clear();
+        this.parentHistograms = null;
+        this.sibling = null;
+        this.siblingHistograms = null;
+    }
+
+}
@@ -3,9 +3,8 @@
  */
 package org.theseed.dl4j.decision;
 
-import java.util.List;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.nd4j.linalg.dataset.DataSet;
@@ -21,20 +20,28 @@ public class NonReplacingRandomizer implements IRandomizer {
     // FIELDS
     /** number of examples to put in each subset */
     private int nSize;
-    /** full list of examples */
-    private List<DataSet> allRows;
+    /** input training set */
+    private DataSet trainingSet;
+    /** number of examples in the input training set */
+    private int nRows;
 
     @Override
     public void initializeData(int nClasses, int nSize, DataSet trainingSet) {
-        this.allRows = trainingSet.asList();
-        int maxSize = this.allRows.size() / 2;
+        this.trainingSet = trainingSet;
+        this.nRows = trainingSet.numExamples();
+        int maxSize = this.nRows / 2;
         this.nSize = (nSize <= maxSize ? nSize : maxSize);
     }
 
     @Override
     public DataSet getData(long seed) {
-        // Choose the elements to pull.  Note that we cannot shuffle "allRows", because it would not be thread-safe.
-        int n = allRows.size();
+        return IRandomizer.selectRows(this.trainingSet, this.getRows(seed));
+    }
+
+    @Override
+    public int[] getRows(long seed) {
+        // Choose the elements to pull.  We shuffle a private index array, so this is thread-safe.
+        int n = this.nRows;
         int[] shuffler = IntStream.range(0, n).toArray();
         Random rand = new Random(seed);
         for (int i = 0; i < nSize; i++) {
@@ -43,10 +50,7 @@ public class NonReplacingRandomizer implements IRandomizer {
             shuffler[i] = shuffler[j];
             shuffler[j] = buffer;
         }
-        // Create a dataset from the selected elements.
-        List<DataSet> sample = IntStream.range(0, nSize).mapToObj(i -> this.allRows.get(shuffler[i]))
-                .collect(Collectors.toList());
-        return DataSet.merge(sample);
+        return Arrays.copyOf(shuffler, nSize);
     }
 
 }
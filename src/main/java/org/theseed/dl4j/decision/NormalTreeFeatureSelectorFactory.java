@@ -33,7 +33,13 @@ public class NormalTreeFeatureSelectorFactory implements Iterator<TreeFeatureSel
         @Override
         public FeatureSelector getSelector(int depth) {
             return new FeatureSelector.Multiple(NormalTreeFeatureSelectorFactory.this.idxes,
-                    NormalTreeFeatureSelectorFactory.this.numFeatures, this.getRandomizer());
+                    NormalTreeFeatureSelectorFactory.this.numFeatures, this.getRandomizer(),
+                    NormalTreeFeatureSelectorFactory.this.finderType);
+        }
+
+        @Override
+        protected TreeFeatureSelectorFactory copy(long randSeed) {
+            return NormalTreeFeatureSelectorFactory.this.new Builder(randSeed);
         }
     }
 
@@ -48,9 +54,11 @@ public class NormalTreeFeatureSelectorFactory implements Iterator<TreeFeatureSel
     private int nTrees;
     /** array of nontrivial input column indices */
     private int[] idxes;
+    /** type of split point finder to use */
+    private SplitPointFinder.Type finderType;
 
     /**
-     * Construct this selector factory.
+     * Construct this selector factory using the mean split point finder.
      *
      * @param randSeed		randomizer seed
      * @param idxCols		array of nontrival input column indices
@@ -58,11 +66,26 @@ public class NormalTreeFeatureSelectorFactory implements Iterator<TreeFeatureSel
      * @param numTrees		number of trees to build
      */
     public NormalTreeFeatureSelectorFactory(long randSeed, int[] idxCols, int numSelect, int numTrees) {
+        this(randSeed, idxCols, numSelect, numTrees, SplitPointFinder.Type.MEAN);
+    }
+
+    /**
+     * Construct this selector factory.
+     *
+     * @param randSeed		randomizer seed
+     * @param idxCols		array of nontrival input column indices
+     * @param numSelect		number of features to select for each tree
+     * @param numTrees		number of trees to build
+     * @param finderType	type of split point finder to use
+     */
+    public NormalTreeFeatureSelectorFactory(long randSeed, int[] idxCols, int numSelect, int numTrees,
+            SplitPointFinder.Type finderType) {
         this.counter = 0;
         this.rand = new Random(randSeed);
         this.numFeatures = numSelect;
         this.nTrees = numTrees;
         this.idxes = idxCols;
+        this.finderType = finderType;
     }
 
     @Override
@@ -92,7 +115,7 @@ public class NormalTreeFeatureSelectorFactory implements Iterator<TreeFeatureSel
             nFeatures = idxes.length / 2;
         // Note that we add a prime number to the seed so that it is not the same as the seed used for example selection.
         return new NormalTreeFeatureSelectorFactory(processor.getSeed() + 3719, idxes, nFeatures,
-                parms.getNumTrees());
+                parms.getNumTrees(), parms.getFinderType());
     }
 
 }
@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This object evaluates a forest of decision trees using the QuickScorer algorithm.  Instead of walking each tree,
+ * it gathers the choice nodes of all the trees, groups them by feature, and sorts each group by threshold.  For an
+ * input row, the only nodes that need to be examined are the ones whose test is false (the feature value is greater
+ * than the threshold), and for each feature these form a prefix of the sorted group.
+ *
+ * The leaves of each tree are numbered from left to right, and each tree has a bit vector with one bit per leaf.  A
+ * false node makes every leaf in its left subtree unreachable, so processing the node clears the bits for those
+ * leaves.  When all the false nodes have been processed, the exit leaf of each tree is the leftmost leaf whose bit is
+ * still set.  The left subtree of a node always covers a contiguous range of leaves, so each node is stored as a
+ * range of words with masks for the first and last word.  For trees of up to 64 leaves, every node is a single
+ * word, and the masks are arranged so that no branch is needed to handle that case.
+ *
+ * The cost of scoring a row is proportional to the number of false nodes, rather than the depth of the trees, so
+ * this engine is best suited to forests of shallow trees.  For deep, fully-grown trees, traversal is faster.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class QuickScorer {
+
+    // FIELDS
+    /** number of trees */
+    private final int nTrees;
+    /** number of classes */
+    private final int nClasses;
+    /** index of the first bit-vector word for each tree, plus a trailing entry for the total */
+    private final int[] treeWords;
+    /** class predicted by each leaf, indexed by global bit position */
+    private final int[] leafClasses;
+    /** index of the first node entry for each feature, plus a trailing entry for the total */
+    private final int[] featureStarts;
+    /** threshold for each node entry */
+    private final double[] thresholds;
+    /** index of the first bit-vector word cleared by each node entry */
+    private final int[] wordLos;
+    /** index of the last bit-vector word cleared by each node entry */
+    private final int[] wordHis;
+    /** mask for the first word cleared by each node entry */
+    private final long[] maskLos;
+    /** mask for the last word cleared by each node entry (all ones if it is the same as the first) */
+    private final long[] maskHis;
+
+    /**
+     * This class describes a choice node during construction.
+     */
+    private static class NodeEntry implements Comparable<NodeEntry> {
+
+        /** feature index */
+        private final int feature;
+        /** threshold value */
+        private final double threshold;
+        /** global bit position of the first leaf in the left subtree */
+        private final int bitLo;
+        /** global bit position past the last leaf in the left subtree */
+        private final int bitHi;
+
+        /**
+         * Create a node entry.
+         *
+         * @param feature		feature index
+         * @param threshold		threshold value
+         * @param bitLo			global bit position of the first leaf in the left subtree
+         * @param bitHi			global bit position past the last leaf in the left subtree
+         */
+        protected NodeEntry(int feature, double threshold, int bitLo, int bitHi) {
+            this.feature = feature;
+            this.threshold = threshold;
+            this.bitLo = bitLo;
+            this.bitHi = bitHi;
+        }
+
+        @Override
+        public int compareTo(NodeEntry o) {
+            int retVal = Integer.compare(this.feature, o.feature);
+            if (retVal == 0)
+                retVal = Double.compare(this.threshold, o.threshold);
+            return retVal;
+        }
+
+    }
+
+    /**
+     * Build a QuickScorer for a forest of decision trees.
+     *
+     * @param trees			list of trees in the forest
+     * @param nFeatures		number of input features
+     * @param nClasses		number of classes
+     */
+    public QuickScorer(List<DecisionTree> trees, int nFeatures, int nClasses) {
+        this.nTrees = trees.size();
+        this.nClasses = nClasses;
+        this.treeWords = new int[this.nTrees + 1];
+        List<FlatTree> flats = new ArrayList<FlatTree>(this.nTrees);
+        // Allocate the bit vector words for each tree.  A tree has one more leaf than it has choice nodes.
+        int words = 0;
+        for (int t = 0; t < this.nTrees; t++) {
+            FlatTree flat = trees.get(t).getFlatTree();
+            flats.add(flat);
+            this.treeWords[t] = words;
+            words += (flat.size() + 64) / 64;
+        }
+        this.treeWords[this.nTrees] = words;
+        // Number the leaves and collect the choice nodes.
+        this.leafClasses = new int[words * 64];
+        List<NodeEntry> entries = new ArrayList<NodeEntry>();
+        for (int t = 0; t < this.nTrees; t++) {
+            FlatTree flat = flats.get(t);
+            int[] nextLeaf = new int[] { this.treeWords[t] * 64 };
+            this.collect(flat, flat.getRoot(), nextLeaf, entries);
+        }
+        // Sort the node entries by feature and threshold, and store them in the arrays.
+        NodeEntry[] sorted = entries.toArray(new NodeEntry[entries.size()]);
+        Arrays.sort(sorted);
+        final int n = sorted.length;
+        this.featureStarts = new int[nFeatures + 1];
+        this.thresholds = new double[n];
+        this.wordLos = new int[n];
+        this.wordHis = new int[n];
+        this.maskLos = new long[n];
+        this.maskHis = new long[n];
+        int feature = 0;
+        for (int i = 0; i < n; i++) {
+            NodeEntry entry = sorted[i];
+            while (feature < entry.feature)
+                this.featureStarts[++feature] = i;
+            this.thresholds[i] = entry.threshold;
+            int lo = entry.bitLo >>> 6;
+            int hi = (entry.bitHi - 1) >>> 6;
+            this.wordLos[i] = lo;
+            this.wordHis[i] = hi;
+            // The masks have zeroes for the leaves being cleared.
+            long loMask = -1L << (entry.bitLo & 63);
+            long hiMask = -1L >>> (63 - ((entry.bitHi - 1) & 63));
+            if (lo == hi) {
+                this.maskLos[i] = ~(loMask & hiMask);
+                this.maskHis[i] = -1L;
+            } else {
+                this.maskLos[i] = ~loMask;
+                this.maskHis[i] = ~hiMask;
+            }
+        }
+        while (feature < nFeatures)
+            this.featureStarts[++feature] = n;
+    }
+
+    /**
+     * Number the leaves of a subtree from left to right and create the node entries for its choice nodes.
+     *
+     * @param flat			flat form of the tree
+     * @param node			encoded index of the subtree root
+     * @param nextLeaf		single-element array containing the next available global bit position
+     * @param entries		list to which the node entries should be added
+     */
+    private void collect(FlatTree flat, int node, int[] nextLeaf, List<NodeEntry> entries) {
+        if (node < 0) {
+            this.leafClasses[nextLeaf[0]] = ~node;
+            nextLeaf[0]++;
+        } else {
+            int bitLo = nextLeaf[0];
+            this.collect(flat, flat.getLeft(node), nextLeaf, entries);
+            int bitHi = nextLeaf[0];
+            entries.add(new NodeEntry(flat.getFeature(node), flat.getThreshold(node), bitLo, bitHi));
+            this.collect(flat, flat.getRight(node), nextLeaf, entries);
+        }
+    }
+
+    /**
+     * @return a scratch bit-vector array suitable for use with {@link #vote}
+     */
+    public long[] createScratch() {
+        return new long[this.treeWords[this.nTrees]];
+    }
+
+    /**
+     * Add the votes of all the trees for a row of feature values.
+     *
+     * @param data			array containing the row
+     * @param offset		position in the array of the row's first feature value
+     * @param votes			array in which to accumulate the votes
+     * @param voteOffset	position in the vote array of the row's first class
+     * @param scratch		scratch bit-vector array from {@link #createScratch}
+     */
+    public void vote(double[] data, int offset, float[] votes, int voteOffset, long[] scratch) {
+        Arrays.fill(scratch, -1L);
+        // Clear the leaves made unreachable by the false nodes.
+        final int nFeatures = this.featureStarts.length - 1;
+        for (int f = 0; f < nFeatures; f++) {
+            final double value = data[offset + f];
+            final int end = this.featureStarts[f + 1];
+            for (int i = this.featureStarts[f]; i < end && this.thresholds[i] < value; i++) {
+                int lo = this.wordLos[i];
+                int hi = this.wordHis[i];
+                scratch[lo] &= this.maskLos[i];
+                for (int w = lo + 1; w < hi; w++)
+                    scratch[w] = 0;
+                scratch[hi] &= this.maskHis[i];
+            }
+        }
+        // Find the exit leaf of each tree.
+        for (int t = 0; t < this.nTrees; t++) {
+            int w = this.treeWords[t];
+            while (scratch[w] == 0)
+                w++;
+            int leaf = (w << 6) + Long.numberOfTrailingZeros(scratch[w]);
+            votes[voteOffset + this.leafClasses[leaf]] += 1.0f;
+        }
+    }
+
+    /**
+     * Compute the votes of all the trees for a block of rows.
+     *
+     * @param data		array containing the rows in row-major order
+     * @param nRows		number of rows
+     * @param width		number of feature values per row
+     *
+     * @return an array of vote counts in row-major order, with one column per class
+     */
+    public float[] vote(double[] data, int nRows, int width) {
+        float[] retVal = new float[nRows * this.nClasses];
+        long[] scratch = this.createScratch();
+        for (int r = 0; r < nRows; r++)
+            this.vote(data, r * width, retVal, r * this.nClasses, scratch);
+        return retVal;
+    }
+
+}
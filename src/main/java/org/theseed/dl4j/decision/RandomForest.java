@@ -5,16 +5,18 @@ package org.theseed.dl4j.decision;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -24,6 +26,7 @@ import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.theseed.dl4j.QuantileSketch;
 import org.theseed.dl4j.TabbedDataSetReader;
 import org.theseed.dl4j.train.ClassPredictError;
 import org.theseed.dl4j.train.ITrainReporter;
@@ -45,6 +48,12 @@ public class RandomForest implements Serializable {
     private static final long serialVersionUID = -5802362692626598850L;
     /** random number generator */
     private static Random rand = new Random();
+    /** target number of bytes of feature data in a prediction block */
+    private static final int BLOCK_BYTES = 256 * 1024;
+    /** minimum number of rows in a prediction block */
+    private static final int MIN_BLOCK_ROWS = 64;
+    /** per-thread vote buffer for single-row predictions */
+    private static final ThreadLocal<int[]> ROW_VOTES = ThreadLocal.withInitial(() -> new int[0]);
     /** hyperparameters */
     private transient Parms parms;
     /** trees in this forest */
@@ -53,6 +62,8 @@ public class RandomForest implements Serializable {
     private final int nLabels;
     /** number of input features for this tree */
     private int nFeatures;
+    /** training matrix shared by all the trees during creation */
+    private transient TrainingMatrix matrix;
     /** randomizer for selecting training sets */
     private transient IRandomizer randomizer;
     /** split point finder */
@@ -61,6 +72,18 @@ public class RandomForest implements Serializable {
     private transient ITrainReporter monitor;
     /** number of trees built during creation */
     private transient int treesDone;
+    /** out-of-bag votes during creation, indexed by training row and then label */
+    private transient AtomicIntegerArray oobVotes;
+    /** out-of-bag confusion matrix, indexed by expected label and then predicted label */
+    private transient int[][] oobConfusion;
+    /** number of training rows with at least one out-of-bag vote */
+    private transient int oobCount;
+    /** inference engine for predictions */
+    private transient Engine engine;
+    /** QuickScorer for predictions, or NULL if it has not been built */
+    private transient volatile QuickScorer quickScorer;
+    /** TRUE if tree traversal should stop voting on a row once its outcome is decided */
+    private transient boolean earlyExit;
 
     /**
      * type of randomization
@@ -110,6 +133,26 @@ public class RandomForest implements Serializable {
 
     }
 
+    /**
+     * type of inference engine
+     *
+     * TRAVERSAL-- walk each tree from its root to a leaf
+     * QUICKSCORER-- evaluate all the trees at once using QuickScorer bit vectors
+     */
+    public static enum Engine implements IDescribable {
+        TRAVERSAL {
+            @Override
+            public String getDescription() {
+                return "Walk each tree from its root to a leaf.";
+            }
+        }, QUICKSCORER {
+            @Override
+            public String getDescription() {
+                return "Evaluate all the trees at once using QuickScorer bit vectors.";
+            }
+        };
+    }
+
     /**
      * Initialize the randomizer with a specified seed.
      *
@@ -136,7 +179,20 @@ public class RandomForest implements Serializable {
         private Method method;
         /** maximum tree depth */
         private int maxDepth;
-
+        /** type of split point finder for randomly-selected features */
+        private SplitPointFinder.Type finderType;
+        /** tree construction strategy */
+        private DecisionTree.BuildMode buildMode;
+        /** impurity criterion for evaluating splits */
+        private Impurity impurity;
+        /** minimum number of examples at a node for its subtrees to be built in parallel */
+        private int forkLimit;
+        /** minimum number of examples at a node for its features to be searched in parallel */
+        private int searchLimit;
+        /** out-of-bag error change below which the forest is considered converged (0 to always build all the trees) */
+        private double tolerance;
+        /** number of trees over which the out-of-bag error change is measured for convergence */
+        private int window;
 
         /**
          * Construct hyperparameters with default values.
@@ -148,6 +204,13 @@ public class RandomForest implements Serializable {
             this.nExamples = 1000;
             this.method = Method.RANDOM;
             this.maxDepth = 50;
+            this.finderType = SplitPointFinder.Type.MEAN;
+            this.buildMode = DecisionTree.BuildMode.DEPTH;
+            this.impurity = Impurity.ENTROPY;
+            this.forkLimit = 1000;
+            this.searchLimit = 5000;
+            this.tolerance = 0.0;
+            this.window = 10;
         }
 
         /**
@@ -188,6 +251,13 @@ public class RandomForest implements Serializable {
             this.nExamples = nRows / 5;
             this.method = Method.RANDOM;
             this.maxDepth = 2 * nInputs;
+            this.finderType = SplitPointFinder.Type.MEAN;
+            this.buildMode = DecisionTree.BuildMode.DEPTH;
+            this.impurity = Impurity.ENTROPY;
+            this.forkLimit = 1000;
+            this.searchLimit = 5000;
+            this.tolerance = 0.0;
+            this.window = 10;
         }
 
         /**
@@ -298,6 +368,126 @@ public class RandomForest implements Serializable {
             this.maxDepth = maxDepth;
             return this;
         }
+
+        /**
+         * @return the type of split point finder to use for randomly-selected features
+         */
+        public SplitPointFinder.Type getFinderType() {
+            return this.finderType;
+        }
+
+        /**
+         * Specify the type of split point finder to use for randomly-selected features.
+         *
+         * @param finderType 	the finder type to set
+         */
+        public Parms setFinderType(SplitPointFinder.Type finderType) {
+            this.finderType = finderType;
+            return this;
+        }
+
+        /**
+         * @return the tree construction strategy
+         */
+        public DecisionTree.BuildMode getBuildMode() {
+            return this.buildMode;
+        }
+
+        /**
+         * Specify the tree construction strategy.
+         *
+         * @param buildMode 	the build mode to set
+         */
+        public Parms setBuildMode(DecisionTree.BuildMode buildMode) {
+            this.buildMode = buildMode;
+            return this;
+        }
+
+        /**
+         * @return the impurity criterion for evaluating splits
+         */
+        public Impurity getImpurity() {
+            return this.impurity;
+        }
+
+        /**
+         * Specify the impurity criterion for evaluating splits.
+         *
+         * @param impurity 	the impurity criterion to set
+         */
+        public Parms setImpurity(Impurity impurity) {
+            this.impurity = impurity;
+            return this;
+        }
+
+        /**
+         * @return the minimum number of examples at a node for its subtrees to be built in parallel
+         */
+        public int getForkLimit() {
+            return this.forkLimit;
+        }
+
+        /**
+         * Specify the minimum number of examples at a node for its subtrees to be built in parallel.
+         *
+         * @param forkLimit 	the fork limit to set
+         */
+        public Parms setForkLimit(int forkLimit) {
+            this.forkLimit = forkLimit;
+            return this;
+        }
+
+        /**
+         * @return the minimum number of examples at a node for its features to be searched in parallel
+         */
+        public int getSearchLimit() {
+            return this.searchLimit;
+        }
+
+        /**
+         * Specify the minimum number of examples at a node for its features to be searched in parallel.
+         *
+         * @param searchLimit 	the search limit to set
+         */
+        public Parms setSearchLimit(int searchLimit) {
+            this.searchLimit = searchLimit;
+            return this;
+        }
+
+        /**
+         * @return the out-of-bag error change below which the forest is considered converged
+         */
+        public double getTolerance() {
+            return this.tolerance;
+        }
+
+        /**
+         * Specify the out-of-bag error change below which the forest is considered converged.  If this is
+         * zero, all the trees are always built.
+         *
+         * @param tolerance 	the convergence tolerance to set
+         */
+        public Parms setTolerance(double tolerance) {
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        /**
+         * @return the number of trees over which the out-of-bag error change is measured
+         */
+        public int getWindow() {
+            return this.window;
+        }
+
+        /**
+         * Specify the number of trees over which the out-of-bag error change is measured.
+         *
+         * @param window 	the convergence window to set
+         */
+        public Parms setWindow(int window) {
+            this.window = window;
+            return this;
+        }
     }
 
     /**
@@ -309,8 +499,36 @@ public class RandomForest implements Serializable {
      * @param mon			progress monitor (or NULL if none)
      */
     public RandomForest(DataSet dataset, Parms parms, Iterator<TreeFeatureSelectorFactory> factoryIter, ITrainReporter mon) {
+        this(dataset, parms, factoryIter, mon, null);
+    }
+
+    /**
+     * Construct a forest based on the specified training set, using precomputed quantile sketches for the
+     * feature bins.  The sketches are only used if the split point finder type is SKETCH.
+     *
+     * @param dataset		training set to use
+     * @param parms			hyper-parameters
+     * @param factoryIter	iterator for feature selector factories to be used in producing the forest
+     * @param mon			progress monitor (or NULL if none)
+     * @param sketches		array of quantile sketches, one per feature (or NULL to compute them from the training set)
+     */
+    public RandomForest(DataSet dataset, Parms parms, Iterator<TreeFeatureSelectorFactory> factoryIter, ITrainReporter mon,
+            QuantileSketch[] sketches) {
         this.nLabels = dataset.numOutcomes();
-        buildForest(dataset, parms, factoryIter, mon);
+        buildForest(dataset, parms, factoryIter, mon, sketches);
+    }
+
+    /**
+     * Create a forest from a list of existing trees.  This is used when loading a saved model.
+     *
+     * @param nFeatures		number of input features
+     * @param nLabels		number of output labels
+     * @param trees			list of decision trees
+     */
+    protected RandomForest(int nFeatures, int nLabels, List<DecisionTree> trees) {
+        this.nFeatures = nFeatures;
+        this.nLabels = nLabels;
+        this.trees = trees;
     }
 
     /**
@@ -320,14 +538,31 @@ public class RandomForest implements Serializable {
      * @param parms			hyper-parameters
      * @param factoryIter	iterator for feature selector factories to be used in producing the forest
      * @param mon			progress monitor
+     * @param sketches		array of quantile sketches for the features, or NULL if none were precomputed
      */
-    private void buildForest(DataSet dataset, Parms parms, Iterator<TreeFeatureSelectorFactory> factoryIter, ITrainReporter mon) {
+    private void buildForest(DataSet dataset, Parms parms, Iterator<TreeFeatureSelectorFactory> factoryIter, ITrainReporter mon,
+            QuantileSketch[] sketches) {
         this.nFeatures = dataset.numInputs();
         this.parms = parms;
         this.factoryIter = factoryIter;
         this.randomizer = parms.getRandomizer();
         this.treesDone = 0;
         this.monitor = mon;
+        // Convert the training set to a column matrix.  The trees will all train from this one copy, and
+        // the presorted feature indices will be built in it as they are needed.
+        log.debug("Creating training matrix.");
+        this.matrix = new TrainingMatrix(dataset);
+        if (parms.getFinderType() == SplitPointFinder.Type.HISTOGRAM) {
+            log.debug("Computing feature bins.");
+            this.matrix.binFeatures();
+        } else if (parms.getFinderType() == SplitPointFinder.Type.SKETCH) {
+            if (sketches == null) {
+                log.debug("Computing feature sketches.");
+                sketches = this.matrix.sketchFeatures();
+            }
+            log.debug("Computing feature bins from sketches.");
+            this.matrix.binFeatures(sketches);
+        }
         // Initialize the randomizer.
         log.debug("Initializing randomizer for {} examples.", this.parms.getNumExamples());
         this.randomizer.initializeData(this.nLabels, this.parms.getNumExamples(), dataset);
@@ -339,11 +574,78 @@ public class RandomForest implements Serializable {
         log.debug("Creating factories.");
         TreeFeatureSelectorFactory[] factories = IntStream.range(0, this.parms.getNumTrees())
                 .mapToObj(i -> this.factoryIter.next()).toArray(TreeFeatureSelectorFactory[]::new);
-        // Create the decision trees in the random forest.
+        // Create the decision trees in the random forest.  Each tree votes on its out-of-bag rows as it finishes.
         log.debug("Creating trees.");
-        this.trees = IntStream.range(0, this.parms.getNumTrees()).parallel()
-                .mapToObj(i -> this.buildTree(i, seeds[i], factories[i]))
-                .collect(Collectors.toList());
+        this.oobVotes = new AtomicIntegerArray(this.matrix.size() * this.nLabels);
+        if (this.parms.getTolerance() > 0.0)
+            this.buildConverging(seeds, factories);
+        else {
+            this.trees = IntStream.range(0, this.parms.getNumTrees()).parallel()
+                    .mapToObj(i -> this.buildTree(i, seeds[i], factories[i]))
+                    .collect(Collectors.toList());
+            this.computeOutOfBag();
+        }
+        // Release the training matrix and the votes.
+        this.oobVotes = null;
+        this.matrix = null;
+    }
+
+    /**
+     * Build the trees in waves sized to the thread pool, stopping early if the out-of-bag error converges.  The
+     * forest has converged when the error has changed by less than the tolerance since the wave that ended a window's
+     * worth of trees earlier.  The number of trees and the error are reported to the progress monitor after each wave.
+     *
+     * @param seeds			array of randomizer seeds, one per possible tree
+     * @param factories		array of feature selector factories, one per possible tree
+     */
+    private void buildConverging(long[] seeds, TreeFeatureSelectorFactory[] factories) {
+        final int nTrees = seeds.length;
+        final int waveSize = Math.max(ForkJoinPool.getCommonPoolParallelism(), 1);
+        final int window = this.parms.getWindow();
+        final double tolerance = this.parms.getTolerance();
+        // This will track the error after each wave, indexed by number of trees.
+        double[] errors = new double[nTrees + 1];
+        Arrays.fill(errors, Double.NaN);
+        this.trees = new ArrayList<DecisionTree>(nTrees);
+        boolean converged = false;
+        while (! converged && this.trees.size() < nTrees) {
+            final int start = this.trees.size();
+            final int end = Math.min(start + waveSize, nTrees);
+            List<DecisionTree> wave = IntStream.range(start, end).parallel()
+                    .mapToObj(i -> this.buildTree(i, seeds[i], factories[i]))
+                    .collect(Collectors.toList());
+            this.trees.addAll(wave);
+            this.computeOutOfBag();
+            double error = 1.0 - this.getOobAccuracy();
+            errors[end] = error;
+            // Find the error for the last wave at least a window back.
+            int past = end - window;
+            while (past > 0 && Double.isNaN(errors[past]))
+                past--;
+            if (past > 0 && Math.abs(error - errors[past]) < tolerance)
+                converged = true;
+            this.reportWave(end, error);
+        }
+        if (converged)
+            log.info("Out-of-bag error converged after {} of {} trees.", this.trees.size(), nTrees);
+    }
+
+    /**
+     * Report completion of a wave of trees to the progress monitor.  Here the epoch is the number of trees built,
+     * the score is the out-of-bag error, and the rating is the out-of-bag accuracy.
+     *
+     * @param count		number of trees built so far
+     * @param error		out-of-bag error
+     */
+    private void reportWave(int count, double error) {
+        if (this.monitor != null) {
+            try {
+                this.monitor.displayEpoch(count, error, 1.0 - error, false);
+            } catch (InterruptedException e) {
+                // Just ignore the exception.
+                log.error(e.toString());
+            }
+        }
     }
 
     /**
@@ -356,8 +658,8 @@ public class RandomForest implements Serializable {
         this.nLabels = dataset.numOutcomes();
         int[] idxes = getUsefulFeatures(dataset);
         Iterator<TreeFeatureSelectorFactory> treeIter = new NormalTreeFeatureSelectorFactory(rand.nextLong(),
-                idxes, hParms.getNumFeatures(), hParms.getNumTrees());
-        this.buildForest(dataset, hParms, treeIter, null);
+                idxes, hParms.getNumFeatures(), hParms.getNumTrees(), hParms.getFinderType());
+        this.buildForest(dataset, hParms, treeIter, null, null);
     }
 
     /**
@@ -373,14 +675,128 @@ public class RandomForest implements Serializable {
      */
     private DecisionTree buildTree(int id, long seed, TreeFeatureSelectorFactory factory) {
         // Get the sampling to use for training this tree.
-        DataSet sample = this.randomizer.getData(seed);
+        int[] sample = this.randomizer.getRows(seed);
         // Build the decision tree.
-        DecisionTree retVal = new DecisionTree(sample, this.parms, factory);
-        if (this.monitor != null)
+        DecisionTree retVal;
+        if (sample != null) {
+            retVal = new DecisionTree(this.matrix, sample, this.parms, factory);
+            this.voteOutOfBag(retVal, sample);
+        } else {
+            // This randomizer only supplies datasets, so we can't tell which rows are out of bag.
+            retVal = new DecisionTree(this.randomizer.getData(seed), this.parms, factory);
+        }
+        if (this.monitor != null && this.parms.getTolerance() <= 0.0)
             this.reportTree(retVal);
         return retVal;
     }
 
+    /**
+     * Record a new tree's votes on the training rows that were not used to build it.
+     *
+     * @param tree		new decision tree
+     * @param sample	array of indices of the training rows used to build the tree
+     */
+    private void voteOutOfBag(DecisionTree tree, int[] sample) {
+        final int n = this.matrix.size();
+        BitSet inBag = new BitSet(n);
+        for (int r : sample)
+            inBag.set(r);
+        int count = 0;
+        int good = 0;
+        for (int r = inBag.nextClearBit(0); r < n; r = inBag.nextClearBit(r + 1)) {
+            int label = tree.predict(this.matrix, r);
+            this.oobVotes.incrementAndGet(r * this.nLabels + label);
+            count++;
+            if (label == this.matrix.getLabel(r))
+                good++;
+        }
+        if (count > 0)
+            tree.setOobAccuracy(((double) good) / count);
+    }
+
+    /**
+     * Compute the out-of-bag confusion matrix from the accumulated votes.  Each training row that received
+     * at least one vote is predicted by the trees that did not see it during training.
+     */
+    private void computeOutOfBag() {
+        this.oobConfusion = new int[this.nLabels][this.nLabels];
+        this.oobCount = 0;
+        final int n = this.matrix.size();
+        for (int r = 0; r < n; r++) {
+            int base = r * this.nLabels;
+            int best = 0;
+            int max = this.oobVotes.get(base);
+            for (int k = 1; k < this.nLabels; k++) {
+                int votes = this.oobVotes.get(base + k);
+                if (votes > max) {
+                    best = k;
+                    max = votes;
+                }
+            }
+            if (max > 0) {
+                this.oobConfusion[this.matrix.getLabel(r)][best]++;
+                this.oobCount++;
+            }
+        }
+    }
+
+    /**
+     * @return the out-of-bag accuracy computed during creation, or NaN if no out-of-bag votes are available
+     */
+    public double getOobAccuracy() {
+        double retVal = Double.NaN;
+        if (this.oobCount > 0) {
+            int good = 0;
+            for (int k = 0; k < this.nLabels; k++)
+                good += this.oobConfusion[k][k];
+            retVal = ((double) good) / this.oobCount;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the out-of-bag confusion matrix computed during creation, indexed by expected label and then
+     * 		   predicted label, or NULL if the forest was not built in this session
+     */
+    public int[][] getOobConfusion() {
+        return this.oobConfusion;
+    }
+
+    /**
+     * @return the number of training rows scored by out-of-bag voting
+     */
+    public int getOobCount() {
+        return this.oobCount;
+    }
+
+    /**
+     * @return the number of trees in this forest
+     */
+    public int getTreeCount() {
+        return this.trees.size();
+    }
+
+    /**
+     * @return the list of trees in this forest
+     */
+    protected List<DecisionTree> getTrees() {
+        return this.trees;
+    }
+
+    /**
+     * @return the number of input features
+     */
+    public int getNumFeatures() {
+        return this.nFeatures;
+    }
+
+    /**
+     * @return the number of output labels
+     */
+    public int getNumLabels() {
+        return this.nLabels;
+    }
+
     /**
      * Report completion of a new tree to the progress monitor.  Here the epoch is the number of trees completed,
      * the score is 1 minus the new tree's accuracy, and the rating is the max accuracy so far.
@@ -406,14 +822,290 @@ public class RandomForest implements Serializable {
      * @param features		array of features to predict
      */
     public INDArray predict(INDArray features) {
-        // Get an empty result matrix.
-        INDArray retVal = Nd4j.zeros(features.rows(), this.nLabels);
-        // Ask each tree to vote.
-        for (DecisionTree tree : this.trees)
-            tree.vote(features, retVal);
+        INDArray retVal;
+        if (features.rows() == 0)
+            retVal = Nd4j.zeros(0, this.nLabels);
+        else {
+            // Extract the feature rows into a single primitive array in row-major order.
+            final int nRows = features.rows();
+            double[] data = rowMajorData(features);
+            final QuickScorer scorer = (this.engine == Engine.QUICKSCORER ? this.getQuickScorer() : null);
+            float[] votes = predictBlocks(data, nRows, features.columns(), this.nLabels,
+                    (d, width, start, end, v) -> this.predictBlock(scorer, d, width, start, end, v));
+            retVal = Nd4j.create(votes, new long[] { nRows, this.nLabels });
+        }
         return retVal;
     }
 
+    /**
+     * Score a set of feature rows in cache-sized blocks, in parallel.  Each block writes to its own section of the
+     * vote array.  This is the batch voting loop for every kind of forest, so they all divide the work the same way.
+     *
+     * @param data		array of feature rows in row-major order
+     * @param nRows		number of feature rows
+     * @param width		number of feature values per row
+     * @param nLabels	number of output labels
+     * @param voter		object that computes the votes for a single block
+     *
+     * @return an array of votes, in row-major order with one column per label
+     */
+    protected static float[] predictBlocks(double[] data, int nRows, int width, int nLabels, IBlockVoter voter) {
+        float[] retVal = new float[nRows * nLabels];
+        final int blockRows = Math.max(MIN_BLOCK_ROWS, BLOCK_BYTES / (Double.BYTES * Math.max(width, 1)));
+        final int nBlocks = (nRows + blockRows - 1) / blockRows;
+        IntStream.range(0, nBlocks).parallel().forEach(b -> {
+            int start = b * blockRows;
+            int end = Math.min(start + blockRows, nRows);
+            voter.voteBlock(data, width, start, end, retVal);
+        });
+        return retVal;
+    }
+
+    /**
+     * Extract the values of a feature matrix into a primitive array in row-major order.  If the matrix is already a
+     * complete row-major array, its buffer is converted directly, so there is only one copy.
+     *
+     * @param features		matrix of feature rows
+     *
+     * @return an array containing the feature rows in row-major order
+     */
+    public static double[] rowMajorData(INDArray features) {
+        INDArray source = features;
+        if (features.ordering() != 'c' || features.isView() || features.data().length() != features.length())
+            source = features.dup('c');
+        return source.data().asDouble();
+    }
+
+    /**
+     * Compute the votes for a block of rows.  The votes are accumulated in a local array and then copied to the
+     * block's section of the output array.
+     *
+     * @param scorer	QuickScorer to use, or NULL to use tree traversal
+     * @param data		array of feature rows in row-major order
+     * @param width		number of feature values per row
+     * @param start		index of the first row in the block
+     * @param end		index past the last row in the block
+     * @param votes		output array of votes, in row-major order with one column per label
+     */
+    private void predictBlock(QuickScorer scorer, double[] data, int width, int start, int end, float[] votes) {
+        final int n = end - start;
+        if (scorer != null) {
+            long[] scratch = scorer.createScratch();
+            for (int r = start; r < end; r++)
+                scorer.vote(data, r * width, votes, r * this.nLabels, scratch);
+        } else if (this.earlyExit) {
+            int[] counts = new int[this.nLabels];
+            for (int r = start; r < end; r++) {
+                this.voteRow(data, r * width, counts);
+                final int base = r * this.nLabels;
+                for (int k = 0; k < this.nLabels; k++)
+                    votes[base + k] = counts[k];
+            }
+        } else {
+            int[] counts = new int[n * this.nLabels];
+            // Ask each tree to vote on every row in the block, using its fastest predictor.
+            for (DecisionTree tree : this.trees) {
+                ITreePredictor predictor = tree.getPredictor();
+                for (int i = 0; i < n; i++)
+                    counts[i * this.nLabels + predictor.predict(data, (start + i) * width)]++;
+            }
+            final int base = start * this.nLabels;
+            for (int i = 0; i < counts.length; i++)
+                votes[base + i] = counts[i];
+        }
+    }
+
+    /**
+     * Compute the tree votes for a single row of feature values, honoring the early-exit setting.
+     *
+     * @param data		array containing the row
+     * @param offset	position in the array of the row's first feature value
+     * @param counts	array to receive the vote counts; only the first entry for each label is used
+     */
+    private void voteRow(double[] data, int offset, int[] counts) {
+        Arrays.fill(counts, 0, this.nLabels, 0);
+        final int nTrees = this.trees.size();
+        if (! this.earlyExit) {
+            for (int t = 0; t < nTrees; t++)
+                counts[this.trees.get(t).getPredictor().predict(data, offset)]++;
+        } else {
+            // Track the leading label and the top two vote counts.  Once the lead is greater than the number
+            // of trees left to vote, no other label can catch up, even to tie.
+            int leader = -1;
+            int first = 0;
+            int second = 0;
+            for (int t = 0; t < nTrees && first - second <= nTrees - t; t++) {
+                int label = this.trees.get(t).getPredictor().predict(data, offset);
+                int count = ++counts[label];
+                if (label == leader)
+                    first = count;
+                else if (count > first) {
+                    second = first;
+                    first = count;
+                    leader = label;
+                } else if (count > second)
+                    second = count;
+            }
+        }
+    }
+
+    /**
+     * Predict the label for a single row of feature values.  This method is intended for scoring individual rows
+     * with low latency.  It does not allocate any memory once each thread's vote buffer exists, and it is thread-safe
+     * as long as the forest is not being modified.  The trees are always traversed, even if the QuickScorer engine
+     * is selected.
+     *
+     * @param row	array of feature values for the row
+     *
+     * @return the index of the predicted label
+     */
+    public int predict(double[] row) {
+        int[] counts = ROW_VOTES.get();
+        if (counts.length < this.nLabels) {
+            counts = new int[this.nLabels];
+            ROW_VOTES.set(counts);
+        }
+        this.voteRow(row, 0, counts);
+        return bestLabel(counts, this.nLabels);
+    }
+
+    /**
+     * Compute the votes for a single row of feature values.  The vote array is cleared first.  This method does not
+     * allocate any memory, and it is thread-safe as long as the forest is not being modified and no two threads use
+     * the same vote array.  The trees are always traversed, even if the QuickScorer engine is selected.
+     *
+     * In early-exit mode, voting stops as soon as the leading label cannot be overtaken, so the counts are partial:
+     * they identify the winning label, but they need not add up to the number of trees.
+     *
+     * @param row			array of feature values for the row
+     * @param votesOut		array to receive the vote count for each label; it must have at least one entry per label
+     *
+     * @return the index of the predicted label
+     */
+    public int predictInto(double[] row, int[] votesOut) {
+        this.voteRow(row, 0, votesOut);
+        return bestLabel(votesOut, this.nLabels);
+    }
+
+    /**
+     * @return the index of the label with the most votes; ties go to the lowest index
+     *
+     * @param counts	array of vote counts, indexed by label
+     * @param n			number of labels
+     */
+    private static int bestLabel(int[] counts, int n) {
+        int retVal = 0;
+        for (int k = 1; k < n; k++) {
+            if (counts[k] > counts[retVal])
+                retVal = k;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the inference engine used for predictions
+     */
+    public Engine getEngine() {
+        return (this.engine == null ? Engine.TRAVERSAL : this.engine);
+    }
+
+    /**
+     * Specify the inference engine to use for predictions.
+     *
+     * @param engine	the engine to use
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return TRUE if tree traversal stops voting on a row once its outcome is decided
+     */
+    public boolean isEarlyExit() {
+        return this.earlyExit;
+    }
+
+    /**
+     * Specify whether tree traversal should stop voting on a row once its outcome is decided.  The trees vote in
+     * order, and when the leading label is ahead of every other label by more than the number of trees remaining,
+     * the rest of the trees are skipped.  The predicted labels are unchanged, but the vote counts returned by
+     * {@link #predict(INDArray)} will only include the trees that actually voted.  This has no effect on the
+     * QuickScorer engine, which evaluates all the trees at once.
+     *
+     * @param earlyExit		TRUE to stop voting early, else FALSE
+     */
+    public void setEarlyExit(boolean earlyExit) {
+        this.earlyExit = earlyExit;
+    }
+
+    /**
+     * Sort the trees so that the ones with the highest out-of-bag accuracy vote first.  This does not change the
+     * predictions, but in early-exit mode it allows the outcome for a row to be decided sooner.  Trees whose
+     * accuracy is not known are placed last, in their original order.
+     *
+     * The out-of-bag accuracies are not saved with the model, so the trees of a loaded forest all have unknown
+     * accuracy and this method leaves them in file order.  For this reason, {@link #save(File)} writes the trees
+     * in sorted order, and a loaded forest is already sorted.
+     */
+    public void sortTrees() {
+        this.trees = sortByAccuracy(this.trees);
+    }
+
+    /**
+     * @return a copy of a tree list, sorted so that the trees with the highest out-of-bag accuracy come first
+     *
+     * The sort is stable, so trees whose accuracy is not known are placed last, in their original order.
+     *
+     * @param trees		list of trees to sort
+     */
+    protected static List<DecisionTree> sortByAccuracy(List<DecisionTree> trees) {
+        List<DecisionTree> retVal = new ArrayList<DecisionTree>(trees);
+        retVal.sort((a, b) -> Double.compare(b.getOobAccuracy(), a.getOobAccuracy()));
+        return retVal;
+    }
+
+    /**
+     * @return the QuickScorer for this forest, building it if necessary
+     */
+    private QuickScorer getQuickScorer() {
+        QuickScorer retVal = this.quickScorer;
+        if (retVal == null) {
+            retVal = new QuickScorer(this.trees, this.nFeatures, this.nLabels);
+            this.quickScorer = retVal;
+        }
+        return retVal;
+    }
+
+    /**
+     * Compile every tree in this forest into bytecode, so that predictions run as generated code.  Each compiled
+     * tree is checked against the interpreted tree on a sample of feature rows and on the edge values of every
+     * choice node (the threshold, NaN, and the infinities) before it is used.  Compilation is never done unless
+     * this method is called explicitly.
+     *
+     * @param sample	array of feature rows for checking the compiled trees
+     *
+     * @throws IllegalStateException if a compiled tree disagrees with the interpreted tree
+     */
+    public void compile(INDArray sample) {
+        TreeCompiler compiler = new TreeCompiler();
+        final int nRows = sample.rows();
+        final int width = sample.columns();
+        double[] data = rowMajorData(sample);
+        for (DecisionTree tree : this.trees) {
+            ITreePredictor compiled = compiler.compile(tree);
+            for (int r = 0; r < nRows; r++) {
+                int expected = tree.predict(sample, r);
+                int actual = compiled.predict(data, r * width);
+                if (expected != actual)
+                    throw new IllegalStateException("Compiled tree predicted " + actual + " instead of " + expected
+                            + " for sample row " + r + ".");
+            }
+            TreeCompiler.checkEdges(tree, compiled);
+            tree.setPredictor(compiled);
+        }
+        log.info("{} trees compiled.", this.trees.size());
+    }
+
     /**
      * @return the accuracy of a classifier for the specified testing set
      *
@@ -436,45 +1128,54 @@ public class RandomForest implements Serializable {
 
     /**
      * Compute the impact of each input on the classifications.  This is a one-dimensional array with
-     * a number for each input.
+     * a number for each input.  If the forest has no trees (for example, a partial forest from a
+     * {@link ForestLoader} before any tree is active), every impact is zero.
      */
     public INDArray computeImpact() {
         INDArray retVal = Nd4j.zeros(this.nFeatures);
-        // Accumulate each tree's impact.
-        for (DecisionTree tree : this.trees)
-            tree.accumulateImpact(retVal);
-        // Take the mean.
-        retVal.divi(this.trees.size());
+        final int nTrees = this.trees.size();
+        if (nTrees > 0) {
+            // Accumulate each tree's impact.
+            for (DecisionTree tree : this.trees)
+                tree.accumulateImpact(retVal);
+            // Take the mean.
+            retVal.divi(nTrees);
+        }
         return retVal;
     }
 
     /**
-     * Save this model to the specified file.
+     * Save this model to the specified file.  The model is written in the binary format described by
+     * {@link ForestFile}.  The trees are written in order of out-of-bag accuracy, so that the saved order is the
+     * one used by early-exit voting.  The trees of this model are not reordered.
      *
      * @param saveFile	output file to contain this random forest
      *
      * @throws IOException
-     * @throws FileNotFoundException
      */
-    public void save(File saveFile) throws FileNotFoundException, IOException {
-        try (FileOutputStream fileStream = new FileOutputStream(saveFile)) {
-            ObjectOutputStream outStream = new ObjectOutputStream(fileStream);
-            outStream.writeObject(this);
-        }
+    public void save(File saveFile) throws IOException {
+        ForestFile.write(this, saveFile);
     }
 
     /**
      * @return a random forest model loaded from the specified file
      *
+     * The file can be in the binary format written by {@link #save(File)} or in the older Java serialization
+     * format.
+     *
      * @param loadFile		file containing the model
      */
     public static RandomForest load(File loadFile) throws IOException {
         RandomForest retVal;
-        try (FileInputStream fileStream = new FileInputStream(loadFile)) {
-            ObjectInputStream inStream = new ObjectInputStream(fileStream);
-            retVal = (RandomForest) inStream.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new IOException("Invalid format for " + loadFile + ": " + e.toString());
+        if (ForestFile.isForestFile(loadFile))
+            retVal = ForestFile.read(loadFile);
+        else {
+            try (FileInputStream fileStream = new FileInputStream(loadFile)) {
+                ObjectInputStream inStream = new ObjectInputStream(fileStream);
+                retVal = (RandomForest) inStream.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Invalid format for " + loadFile + ": " + e.toString());
+            }
         }
         return retVal;
     }
@@ -0,0 +1,70 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+/**
+ * This method picks a single random split point for each feature, uniformly distributed between the feature's
+ * minimum and maximum values in the node.  This is the method used by extremely randomized trees.  It requires
+ * only two linear passes over the rows and no sorting.
+ *
+ * The finder is created with a seed for each node.  The random position for a feature is computed by hashing
+ * the seed with the feature index, so the result does not depend on the order in which the features are
+ * examined, and the finder remains stateless.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class RandomThresholdSplitPointFinder extends SplitPointFinder {
+
+    // FIELDS
+    /** random seed for this node */
+    private final long seed;
+    /** scale factor for converting a 53-bit integer to a fraction */
+    private static final double FRACTION_SCALE = 0x1.0p-53;
+
+    /**
+     * Create a random-threshold split point finder.
+     *
+     * @param seed		random seed for the node
+     */
+    public RandomThresholdSplitPointFinder(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public Splitter computeSplit(int iFeature, NodeRows rows, double entropy) {
+        Splitter retVal = Splitter.NULL;
+        // Find the range of the feature values.
+        double[] column = rows.getData().getColumn(iFeature);
+        int[] buffer = rows.getBuffer();
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = rows.getStart(); i < rows.getEnd(); i++) {
+            double value = column[buffer[i]];
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+        if (min < max) {
+            // Pick a random point in the range.  The minimum always splits left and the maximum always splits right.
+            double fraction = (mix(this.seed + iFeature) >>> 11) * FRACTION_SCALE;
+            double limit = min + fraction * (max - min);
+            if (! (limit < max))
+                limit = min;
+            retVal = Splitter.computeSplitter(iFeature, limit, rows, entropy);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a well-mixed 64-bit hash of a long integer
+     *
+     * @param z		value to hash
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -3,9 +3,7 @@
  */
 package org.theseed.dl4j.decision;
 
-import java.util.List;
 import java.util.Random;
-import java.util.stream.Collectors;
 
 import org.nd4j.linalg.dataset.DataSet;
 
@@ -20,22 +18,28 @@ public class ReplacingRandomizer implements IRandomizer {
     // FIELDS
     /** number of examples to put in each subset */
     private int nSize;
-    /** full list of examples */
-    private List<DataSet> allRows;
+    /** input training set */
+    private DataSet trainingSet;
+    /** number of examples in the input training set */
+    private int nRows;
 
     @Override
     public void initializeData(int nClasses, int nSize, DataSet trainingSet) {
-        this.allRows = trainingSet.asList();
-        int maxSize = this.allRows.size() / 2;
+        this.trainingSet = trainingSet;
+        this.nRows = trainingSet.numExamples();
+        int maxSize = this.nRows / 2;
         this.nSize = (nSize <= maxSize ? nSize : maxSize);
     }
 
     @Override
     public DataSet getData(long seed) {
+        return IRandomizer.selectRows(this.trainingSet, this.getRows(seed));
+    }
+
+    @Override
+    public int[] getRows(long seed) {
         Random rand = new Random(seed);
-        List<DataSet> sample = rand.ints(this.nSize, 0, this.allRows.size()).mapToObj(i -> this.allRows.get(i))
-                .collect(Collectors.toList());
-        return DataSet.merge(sample);
+        return rand.ints(this.nSize, 0, this.nRows).toArray();
     }
 
 }
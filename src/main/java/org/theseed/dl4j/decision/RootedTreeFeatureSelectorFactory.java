@@ -42,11 +42,17 @@ public class RootedTreeFeatureSelectorFactory implements Iterator<TreeFeatureSel
                 retVal = new FeatureSelector.Single(rootIdx);
             else {
                 int[] idxes = IntStream.range(0, RootedTreeFeatureSelectorFactory.this.nCols).filter(i -> i != rootIdx).toArray();
-                retVal = new FeatureSelector.Multiple(idxes, RootedTreeFeatureSelectorFactory.this.nSelect, this.getRandomizer());
+                retVal = new FeatureSelector.Multiple(idxes, RootedTreeFeatureSelectorFactory.this.nSelect, this.getRandomizer(),
+                        RootedTreeFeatureSelectorFactory.this.finderType);
             }
             return retVal;
         }
 
+        @Override
+        protected TreeFeatureSelectorFactory copy(long randSeed) {
+            return RootedTreeFeatureSelectorFactory.this.new Builder(randSeed, this.rootIdx);
+        }
+
     }
 
     // FIELDS
@@ -62,9 +68,11 @@ public class RootedTreeFeatureSelectorFactory implements Iterator<TreeFeatureSel
     private int nTrees;
     /** number of features to use at each level */
     private int nSelect;
+    /** type of split point finder to use below the root */
+    private SplitPointFinder.Type finderType;
 
     /**
-     * Create this feature selector factory.
+     * Create this feature selector factory using the mean split point finder below the root.
      *
      * @param seed			randomizer seed
      * @param featureNames	list of feature column names
@@ -74,12 +82,28 @@ public class RootedTreeFeatureSelectorFactory implements Iterator<TreeFeatureSel
      */
     public RootedTreeFeatureSelectorFactory(long seed, List<String> featureNames, List<String> impactCols, int numFeatures,
             int numTrees) {
+        this(seed, featureNames, impactCols, numFeatures, numTrees, SplitPointFinder.Type.MEAN);
+    }
+
+    /**
+     * Create this feature selector factory.
+     *
+     * @param seed			randomizer seed
+     * @param featureNames	list of feature column names
+     * @param impactCols	list of the names of the feature columns to use as roots
+     * @param numFeatures	number of features to select for each choice node
+     * @param numTrees		number of trees to output
+     * @param finderType	type of split point finder to use below the root
+     */
+    public RootedTreeFeatureSelectorFactory(long seed, List<String> featureNames, List<String> impactCols, int numFeatures,
+            int numTrees, SplitPointFinder.Type finderType) {
         this.randomizer = new Random(seed);
         this.nCols = featureNames.size();
         this.nTrees = numTrees;
         this.nSelect = numFeatures;
         this.roots = impactCols.stream().mapToInt(x -> featureNames.indexOf(x)).filter(i -> i >= 0).toArray();
         this.counter = 0;
+        this.finderType = finderType;
     }
 
     /**
@@ -93,7 +117,7 @@ public class RootedTreeFeatureSelectorFactory implements Iterator<TreeFeatureSel
     public static Iterator<TreeFeatureSelectorFactory> iterator(int nTrees, RandomForestTrainProcessor processor) throws IOException {
         RandomForest.Parms parms = processor.getParms();
         return new RootedTreeFeatureSelectorFactory(processor.getSeed() + 8719, processor.getColNames(),
-                processor.getImpactCols(), parms.getNumFeatures(), nTrees);
+                processor.getImpactCols(), parms.getNumFeatures(), nTrees, parms.getFinderType());
     }
 
     @Override
@@ -3,55 +3,49 @@
  */
 package org.theseed.dl4j.decision;
 
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
-
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.factory.Nd4j;
-
 /**
- * This method uses an exhaustive search to find the best split point.
+ * This method uses an exhaustive search to find the best split point.  The rows are taken in feature-value order,
+ * so that every split point can be evaluated in a single linear sweep.
  *
  * @author Bruce Parrello
  */
 public class SequentialSplitPointFinder extends SplitPointFinder {
 
     @Override
-    public Splitter computeSplit(int iFeature, int nClasses, List<DataSet> rows, double entropy) {
+    public Splitter computeSplit(int iFeature, NodeRows rows, double entropy) {
         Splitter retVal = Splitter.NULL;
         // If there are only two rows, split on the mean.
         if (rows.size() <= 2) {
-            double mean = DecisionTree.featureMean(rows, iFeature);
-            retVal =  Splitter.computeSplitter(iFeature, mean, nClasses, rows, entropy);
+            double mean = rows.featureMean(iFeature);
+            retVal =  Splitter.computeSplitter(iFeature, mean, rows, entropy);
         } else {
-            // These arrays will contain the label sums for each side of the split.
-            INDArray leftLabelSums = Nd4j.zeros(nClasses);
-            INDArray rightLabelSums = Nd4j.zeros(nClasses);
-            // Sort the rows by the feature value.  For each value, we count the number of occurrences of each label.
-            SortedMap<Double, INDArray> rowMap = new TreeMap<Double, INDArray>();
-            for (DataSet row : rows) {
-                double value = row.getFeatures().getDouble(iFeature);
-                @SuppressWarnings("resource")
-                INDArray valueGroup = rowMap.computeIfAbsent(value, v -> Nd4j.zeros(nClasses));
-                // We use ravel here to convert a 1-row matrix to a vector.
-                valueGroup.addi(row.getLabels().ravel());
-                rightLabelSums.addi(row.getLabels().ravel());
-            }
-            // Start with the first value on the left.  Eliminate it from the right label sums.
-            Iterator<Map.Entry<Double, INDArray>> iter = rowMap.entrySet().iterator();
-            Map.Entry<Double, INDArray> curr = iter.next();
-            while (iter.hasNext()) {
-                leftLabelSums.addi(curr.getValue());
-                rightLabelSums.subi(curr.getValue());
-                Map.Entry<Double, INDArray> next = iter.next();
-                double mean = (curr.getKey() + next.getKey()) / 2;
-                Splitter test = Splitter.computeSplitter(iFeature, mean, entropy, leftLabelSums, rightLabelSums);
-                if (test.compareTo(retVal) < 0)
-                    retVal = test;
+            // These arrays will contain the label counts for each side of the split.  Initially, everything is
+            // on the right.
+            final Impurity impurity = rows.getImpurity();
+            int[][] buffers = Splitter.getLabelBuffers(rows.numClasses());
+            int[] leftLabelSums = buffers[0];
+            int[] rightLabelSums = rows.getLabelCounts(buffers[1]);
+            // Get the rows in order by feature value.  We sweep through them, moving one row at a time from the
+            // right side to the left.  Each boundary between two distinct values is a candidate split point.
+            int[] sorted = rows.getSortedRows(iFeature);
+            final int n = sorted.length;
+            double[] column = rows.getData().getColumn(iFeature);
+            int[] labels = rows.getData().getLabels();
+            double value = column[sorted[0]];
+            for (int k = 1; k < n; k++) {
+                int label = labels[sorted[k - 1]];
+                leftLabelSums[label]++;
+                rightLabelSums[label]--;
+                double next = column[sorted[k]];
+                if (Splitter.isBoundary(value, next)) {
+                    // Only build a splitter if this candidate is an improvement.
+                    double gain = Splitter.computeGain(impurity, entropy, leftLabelSums, k, rightLabelSums, n - k);
+                    if (retVal.isImprovedBy(gain, k, n - k)) {
+                        double limit = Splitter.midpoint(value, next);
+                        retVal = Splitter.computeSplitter(iFeature, limit, impurity, entropy, leftLabelSums, rightLabelSums);
+                    }
+                }
+                value = next;
             }
         }
         return retVal;
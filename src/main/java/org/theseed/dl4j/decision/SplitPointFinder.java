@@ -3,15 +3,17 @@
  */
 package org.theseed.dl4j.decision;
 
-import java.util.List;
+import java.util.Random;
 
-import org.nd4j.linalg.dataset.DataSet;
-import org.theseed.dl4j.train.RandomForestTrainProcessor;
+import org.theseed.utils.IDescribable;
 
 /**
  * This object is used to determine the best split point for a feature in the decision tree.  The default
  * method simply takes the mean.  More sophisticated methods will look at multiple split points.
  *
+ * Split point finders do not keep any state between calls, so a single finder can be used for several
+ * features at once.
+ *
  * @author Bruce Parrello
  *
  */
@@ -20,31 +22,85 @@ public abstract class SplitPointFinder {
     /**
      * Enumerator for split point strategies.
      */
-    public static enum Type {
+    public static enum Type implements IDescribable {
         MEAN {
             @Override
-            public SplitPointFinder create(RandomForestTrainProcessor processor) {
+            public SplitPointFinder create(Random randomizer) {
                 return new SplitPointFinder.Mean();
             }
+
+            @Override
+            public String getDescription() {
+                return "Split each feature at its mean value.";
+            }
         }, SEQUENTIAL {
             @Override
-            public SplitPointFinder create(RandomForestTrainProcessor processor) {
+            public SplitPointFinder create(Random randomizer) {
                 return new SequentialSplitPointFinder();
             }
+
+            @Override
+            public String getDescription() {
+                return "Test every distinct value of each feature.";
+            }
+        }, HISTOGRAM {
+            @Override
+            public SplitPointFinder create(Random randomizer) {
+                return new HistogramSplitPointFinder();
+            }
+
+            @Override
+            public String getDescription() {
+                return "Test the boundaries between pre-computed value bins.";
+            }
+        }, SKETCH {
+            @Override
+            public SplitPointFinder create(Random randomizer) {
+                return new HistogramSplitPointFinder();
+            }
+
+            @Override
+            public String getDescription() {
+                return "Test the boundaries between value bins taken from approximate quantile sketches.";
+            }
+        }, RANDOM_THRESHOLD {
+            @Override
+            public SplitPointFinder create(Random randomizer) {
+                return new RandomThresholdSplitPointFinder(randomizer.nextLong());
+            }
+
+            @Override
+            public String getDescription() {
+                return "Test a single random value in the range of each feature.";
+            }
         };
 
-        public abstract SplitPointFinder create(RandomForestTrainProcessor processor);
+        /**
+         * @return a split point finder of this type that uses the specified random-number generator for any
+         * 			random choices it must make
+         *
+         * Types that make no random choices ignore the generator, so they do not disturb its stream.
+         *
+         * @param randomizer	random-number generator for the current tree
+         */
+        public abstract SplitPointFinder create(Random randomizer);
     }
 
     /**
      * @return a candidate splitter for the specified input feature in a dataset
      *
      * @param i			index of the specified feature
-     * @param nClasses	number of classifications
-     * @param rows		list of dataset rows for the training set
+     * @param rows		training rows at the current node
      * @param entropy	current entropy level
      */
-    public abstract Splitter computeSplit(int i, int nClasses, List<DataSet> rows, double entropy);
+    public abstract Splitter computeSplit(int i, NodeRows rows, double entropy);
+
+    /**
+     * @return TRUE if this finder uses the feature histograms of the row sets, else FALSE
+     */
+    public boolean usesHistograms() {
+        return false;
+    }
 
     /**
      * Only test the mean for the split point.
@@ -52,9 +108,9 @@ public abstract class SplitPointFinder {
     public static class Mean extends SplitPointFinder {
 
         @Override
-        public Splitter computeSplit(int i, int nClasses, List<DataSet> rows, double entropy) {
-            double mean = DecisionTree.featureMean(rows, i);
-            return Splitter.computeSplitter(i, mean, nClasses, rows, entropy);
+        public Splitter computeSplit(int i, NodeRows rows, double entropy) {
+            double mean = rows.featureMean(i);
+            return Splitter.computeSplitter(i, mean, rows, entropy);
         }
 
     }
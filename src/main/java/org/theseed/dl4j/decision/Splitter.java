@@ -3,16 +3,18 @@
  */
 package org.theseed.dl4j.decision;
 
-import java.util.List;
-
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.factory.Nd4j;
+import java.util.Arrays;
 
 /**
  * This class contains a proposal for splitting a choice node in a decision tree.  The best
  * splitter has the highest information gain.  Note that this is not a set-capable ordering,
- * since two different split schemes can compare equal.
+ * since two different split schemes can compare equal.  The gain is measured using an impurity
+ * criterion, which is entropy unless otherwise specified.
+ *
+ * Split point finders evaluate a great many candidate splits, so the gain for a candidate can be computed directly
+ * from primitive label counts, and a splitter object is only built for a candidate that improves on the best one
+ * found so far.  The label counts are normally kept in per-thread scratch buffers, so that the search does not
+ * allocate memory.
  */
 public class Splitter implements Comparable<Splitter> {
 
@@ -32,6 +34,8 @@ public class Splitter implements Comparable<Splitter> {
     private double gain;
     /** null splitter, indicating do not split */
     public static final Splitter NULL = new Splitter();
+    /** per-thread scratch buffers for left and right label counts */
+    private static final ThreadLocal<int[][]> LABEL_BUFFERS = ThreadLocal.withInitial(() -> new int[2][0]);
 
     /**
      * Create a null splitter.
@@ -41,48 +45,61 @@ public class Splitter implements Comparable<Splitter> {
         this.gain = 0.0;
     }
 
-    /**
-     * Create a splitter from known label sums.
-     */
-
     /**
      * Compute a split proposal for a feature from a set of data rows.
      *
      * @param feature		index of the feature being used to split
      * @param limit			value to split on
-     * @param data			data rows to split
+     * @param rows			data rows to split
      * @param oldEntropy	entropy at the current node
      */
-    public static Splitter computeSplitter(int feature, double limit, int nClasses, List<DataSet> data, double oldEntropy) {
+    public static Splitter computeSplitter(int feature, double limit, NodeRows rows, double oldEntropy) {
         // Split the data rows on the left and the right.
-        INDArray leftLabels = Nd4j.zeros(nClasses);
-        INDArray rightLabels = Nd4j.zeros(nClasses);
-        for (DataSet row : data) {
-            // We need the ravel here because the labels variables are vectors, and getLabels() returns
-            // a single-row matrix.
-            INDArray labelArray = row.getLabels().ravel();
-            if (row.getFeatures().getDouble(feature) <= limit)
-                leftLabels.addi(labelArray);
+        int[][] buffers = getLabelBuffers(rows.numClasses());
+        int[] leftLabels = buffers[0];
+        int[] rightLabels = buffers[1];
+        double[] column = rows.getData().getColumn(feature);
+        int[] labels = rows.getData().getLabels();
+        int[] buffer = rows.getBuffer();
+        for (int i = rows.getStart(); i < rows.getEnd(); i++) {
+            int r = buffer[i];
+            if (column[r] <= limit)
+                leftLabels[labels[r]]++;
             else
-                rightLabels.addi(labelArray);
+                rightLabels[labels[r]]++;
         }
-        return computeSplitter(feature, limit, oldEntropy, leftLabels, rightLabels);
+        return computeSplitter(feature, limit, rows.getImpurity(), oldEntropy, leftLabels, rightLabels);
     }
 
     /**
-     * Compute a split proposal for a feature from the left and right label sums.
+     * Compute an entropy-based split proposal for a feature from the left and right label counts.
      *
      * @param feature		index of the feature being used to split
      * @param limit			value to split on
      * @param oldEntropy	entropy at the current node
-     * @param leftLabels	sum of the labels on the left
-     * @param rightLabels	sum of the labels on the right
+     * @param leftLabels	count of each label on the left
+     * @param rightLabels	count of each label on the right
+     */
+    public static Splitter computeSplitter(int feature, double limit, double oldEntropy, int[] leftLabels,
+            int[] rightLabels) {
+        return computeSplitter(feature, limit, Impurity.ENTROPY, oldEntropy, leftLabels, rightLabels);
+    }
+
+    /**
+     * Compute a split proposal for a feature from the left and right label counts.
+     *
+     * @param feature		index of the feature being used to split
+     * @param limit			value to split on
+     * @param impurity		impurity criterion
+     * @param oldEntropy	impurity at the current node
+     * @param leftLabels	count of each label on the left
+     * @param rightLabels	count of each label on the right
      */
-    public static Splitter computeSplitter(int feature, double limit, double oldEntropy, INDArray leftLabels,
-            INDArray rightLabels) {
+    public static Splitter computeSplitter(int feature, double limit, Impurity impurity, double oldEntropy,
+            int[] leftLabels, int[] rightLabels) {
         Splitter retVal;
-        int leftCount = leftLabels.sumNumber().intValue();
-        int rightCount = rightLabels.sumNumber().intValue();
+        int leftCount = DecisionTree.total(leftLabels);
+        int rightCount = DecisionTree.total(rightLabels);
         if (leftCount <= 0 || rightCount <= 0)
             retVal = NULL;
         else {
@@ -90,15 +107,100 @@ public class Splitter implements Comparable<Splitter> {
             retVal = new Splitter();
             retVal.feature = feature;
             retVal.limit = limit;
-            retVal.leftEntropy = DecisionTree.labelEntropy(leftLabels);
-            retVal.rightEntropy = DecisionTree.labelEntropy(rightLabels);
-            retVal.gain = oldEntropy - (retVal.leftEntropy * leftCount + retVal.rightEntropy * rightCount) / (leftCount + rightCount);
+            double leftWeighted = impurity.weighted(leftLabels, leftCount);
+            double rightWeighted = impurity.weighted(rightLabels, rightCount);
+            retVal.leftEntropy = leftWeighted / leftCount;
+            retVal.rightEntropy = rightWeighted / rightCount;
+            retVal.gain = oldEntropy - (leftWeighted + rightWeighted) / (leftCount + rightCount);
             retVal.leftCount = leftCount;
             retVal.rightCount = rightCount;
         }
         return retVal;
     }
 
+    /**
+     * Compute the information gain for a candidate split from the left and right label counts.  Both sides
+     * must be nonempty.
+     *
+     * @param impurity		impurity criterion
+     * @param oldEntropy	impurity at the current node
+     * @param leftLabels	count of each label on the left
+     * @param leftCount		total number of rows on the left
+     * @param rightLabels	count of each label on the right
+     * @param rightCount	total number of rows on the right
+     *
+     * @return the decrease in impurity produced by the split
+     */
+    public static double computeGain(Impurity impurity, double oldEntropy, int[] leftLabels, int leftCount,
+            int[] rightLabels, int rightCount) {
+        double weighted = impurity.weighted(leftLabels, leftCount) + impurity.weighted(rightLabels, rightCount);
+        return oldEntropy - weighted / (leftCount + rightCount);
+    }
+
+    /**
+     * Determine whether a candidate split would be better than this one.  This uses the same ordering as
+     * {@link #compareTo}, but does not require a splitter object for the candidate.
+     *
+     * @param gain			information gain of the candidate
+     * @param leftCount		number of rows the candidate puts on the left
+     * @param rightCount	number of rows the candidate puts on the right
+     *
+     * @return TRUE if the candidate is the better split, else FALSE
+     */
+    public boolean isImprovedBy(double gain, int leftCount, int rightCount) {
+        int cmp = Double.compare(this.gain, gain);
+        if (cmp == 0)
+            cmp = Math.abs(leftCount - rightCount) - Math.abs(this.leftCount - this.rightCount);
+        return (cmp < 0);
+    }
+
+    /**
+     * Get the current thread's scratch buffers for label counts.  The buffers are cleared to zero, and they remain
+     * valid until the next call from the same thread.
+     *
+     * @param nClasses	number of classifications
+     *
+     * @return a two-element array containing the left and right label count buffers
+     */
+    public static int[][] getLabelBuffers(int nClasses) {
+        int[][] retVal = LABEL_BUFFERS.get();
+        if (retVal[0].length != nClasses) {
+            retVal[0] = new int[nClasses];
+            retVal[1] = new int[nClasses];
+        } else {
+            Arrays.fill(retVal[0], 0);
+            Arrays.fill(retVal[1], 0);
+        }
+        return retVal;
+    }
+
+    /**
+     * Compute the split point between two adjacent feature values.  This is normally the midpoint, but if the
+     * values are so close together that the midpoint rounds up to the higher value, we use the lower value, so
+     * that the lower value still splits left.
+     *
+     * @param low		lower feature value
+     * @param high		higher feature value
+     *
+     * @return the value to use as the split limit
+     */
+    public static double midpoint(double low, double high) {
+        double retVal = (low + high) / 2;
+        if (! (retVal < high))
+            retVal = low;
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if a split point can be placed between two feature values in sorted order, else FALSE
+     *
+     * @param value		lower feature value
+     * @param next		next feature value in sort order
+     */
+    public static boolean isBoundary(double value, double next) {
+        return (value < next || Double.isNaN(next) && ! Double.isNaN(value));
+    }
+
     /**
      * Here we sort better splits to the beginning, so a negative number is returned if
      * this is the better split.
@@ -150,12 +252,13 @@ public class Splitter implements Comparable<Splitter> {
     }
 
     /**
-     * @return TRUE if the specified dataset row would split left, else FALSE
+     * @return TRUE if the specified training row would split left, else FALSE
      *
-     * @param row		row to check
+     * @param data		training matrix containing the row
+     * @param row		index of the row to check
      */
-    public boolean splitsLeft(DataSet row) {
-        double value = row.getFeatures().getDouble(this.feature);
+    public boolean splitsLeft(TrainingMatrix data, int row) {
+        double value = data.getValue(row, this.feature);
         return (value <= limit);
     }
 
@@ -0,0 +1,450 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.theseed.dl4j.QuantileSketch;
+
+/**
+ * A training matrix is a column-oriented copy of a training set.  Each feature column is stored as a primitive
+ * array indexed by row, and each row's classification is stored as a single label index.  This is much faster to
+ * scan during tree construction than a list of single-row datasets.  Once built, the matrix is never modified,
+ * so it can be shared by multiple threads.
+ *
+ * The matrix also maintains a presorted index for each feature:  an array of all the row indices ordered by the
+ * feature value.  The index for a feature is built the first time it is requested and is then shared by every
+ * tree trained from the matrix.  In the same way, it can maintain a binned version of each feature, in which
+ * each value is replaced by a one-byte code for a range of values.  The bin limits are normally computed exactly
+ * from the sorted feature values, but they can also be taken from quantile sketches built while the training set
+ * was being read, which avoids sorting very large columns.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TrainingMatrix {
+
+    /**
+     * This object describes the binned version of a feature.  Each row has a bin code from 0 to the number of
+     * bins minus one.  Bins are ordered by value, and every value in a bin is less than or equal to the bin's limit.
+     * Splitting after a bin is therefore the same as splitting on the bin's limit.
+     */
+    public static class Bins {
+
+        /** bin code for each row (unsigned) */
+        private final byte[] codes;
+        /** upper limit of each bin but the last */
+        private final double[] limits;
+
+        /**
+         * Construct a bin descriptor.
+         *
+         * @param codes		array of bin codes, indexed by row
+         * @param limits	array of bin limits, indexed by bin code
+         */
+        protected Bins(byte[] codes, double[] limits) {
+            this.codes = codes;
+            this.limits = limits;
+        }
+
+        /**
+         * @return the array of bin codes, indexed by row; the codes are unsigned, so they must be masked with 0xFF
+         */
+        public byte[] getCodes() {
+            return this.codes;
+        }
+
+        /**
+         * @return the split limit after a bin
+         *
+         * @param bin	code of the bin whose limit is desired
+         */
+        public double getLimit(int bin) {
+            return this.limits[bin];
+        }
+
+        /**
+         * @return the number of bins
+         */
+        public int size() {
+            return this.limits.length + 1;
+        }
+
+    }
+
+    // FIELDS
+    /** feature values, indexed by feature and then by row */
+    private final double[][] columns;
+    /** label index for each row */
+    private final int[] labels;
+    /** number of classifications */
+    private final int nClasses;
+    /** presorted row indices for each feature, or NULL if the feature has not been sorted yet */
+    private final AtomicReferenceArray<int[]> sortedRows;
+    /** binned values for each feature, or NULL if the feature has not been binned yet */
+    private final AtomicReferenceArray<Bins> bins;
+    /** maximum number of bins per feature */
+    public static final int MAX_BINS = 255;
+    /** partition size below which insertion sort is used */
+    private static final int INSERTION_LIMIT = 16;
+
+    /**
+     * Create a training matrix from a dataset.  The dataset must have a two-dimensional feature array and a
+     * one-hot label array.
+     *
+     * @param dataset	dataset to convert
+     */
+    public TrainingMatrix(DataSet dataset) {
+        this.nClasses = dataset.numOutcomes();
+        INDArray features = dataset.getFeatures();
+        final int nFeatures = (int) features.size(1);
+        this.columns = new double[nFeatures][];
+        for (int i = 0; i < nFeatures; i++)
+            this.columns[i] = features.getColumn(i).toDoubleVector();
+        // For each row, the label is the index of the highest label value.
+        INDArray labelArray = dataset.getLabels();
+        double[][] labelCols = new double[this.nClasses][];
+        for (int j = 0; j < this.nClasses; j++)
+            labelCols[j] = labelArray.getColumn(j).toDoubleVector();
+        final int nRows = (int) features.size(0);
+        this.labels = new int[nRows];
+        for (int r = 0; r < nRows; r++) {
+            int best = 0;
+            double max = labelCols[0][r];
+            for (int j = 1; j < this.nClasses; j++) {
+                if (labelCols[j][r] > max) {
+                    best = j;
+                    max = labelCols[j][r];
+                }
+            }
+            this.labels[r] = best;
+        }
+        this.sortedRows = new AtomicReferenceArray<int[]>(nFeatures);
+        this.bins = new AtomicReferenceArray<Bins>(nFeatures);
+    }
+
+    /**
+     * Create a training matrix from pre-built column and label arrays.  The arrays become the property of the
+     * matrix and must not be modified afterward.
+     *
+     * @param columns	array of feature columns, each indexed by row
+     * @param labels	array of label indices, indexed by row
+     * @param nClasses	number of classifications
+     */
+    public TrainingMatrix(double[][] columns, int[] labels, int nClasses) {
+        this.columns = columns;
+        this.labels = labels;
+        this.nClasses = nClasses;
+        this.sortedRows = new AtomicReferenceArray<int[]>(columns.length);
+        this.bins = new AtomicReferenceArray<Bins>(columns.length);
+    }
+
+    /**
+     * @return the number of rows in the matrix
+     */
+    public int size() {
+        return this.labels.length;
+    }
+
+    /**
+     * @return the number of feature columns in the matrix
+     */
+    public int numFeatures() {
+        return this.columns.length;
+    }
+
+    /**
+     * @return the number of classifications
+     */
+    public int numClasses() {
+        return this.nClasses;
+    }
+
+    /**
+     * @return the array of values for a feature, indexed by row
+     *
+     * @param iFeature	index of the desired feature
+     */
+    public double[] getColumn(int iFeature) {
+        return this.columns[iFeature];
+    }
+
+    /**
+     * @return the value of a feature in a row
+     *
+     * @param row		index of the desired row
+     * @param iFeature	index of the desired feature
+     */
+    public double getValue(int row, int iFeature) {
+        return this.columns[iFeature][row];
+    }
+
+    /**
+     * @return the label index for a row
+     *
+     * @param row		index of the desired row
+     */
+    public int getLabel(int row) {
+        return this.labels[row];
+    }
+
+    /**
+     * @return the array of label indices, indexed by row
+     */
+    public int[] getLabels() {
+        return this.labels;
+    }
+
+    /**
+     * Get the presorted index for a feature.  The index is computed on the first request and then kept for all
+     * subsequent requests, so the caller must not modify it.
+     *
+     * @param iFeature	index of the feature whose sort order is desired
+     *
+     * @return an array of all the row indices in this matrix, sorted by the value of the specified feature
+     */
+    public int[] getSortedRows(int iFeature) {
+        int[] retVal = this.sortedRows.get(iFeature);
+        if (retVal == null) {
+            // Here we have to sort the feature.  If another thread beats us to it, we use its result.
+            int[] sorted = IntStream.range(0, this.size()).toArray();
+            sortRows(this.columns[iFeature], sorted, sorted.length);
+            this.sortedRows.compareAndSet(iFeature, null, sorted);
+            retVal = this.sortedRows.get(iFeature);
+        }
+        return retVal;
+    }
+
+    /**
+     * Get the binned version of a feature.  The bins are computed on the first request and then kept for all
+     * subsequent requests.
+     *
+     * @param iFeature	index of the feature whose bins are desired
+     *
+     * @return the bin descriptor for the specified feature
+     */
+    public Bins getBins(int iFeature) {
+        Bins retVal = this.bins.get(iFeature);
+        if (retVal == null) {
+            this.bins.compareAndSet(iFeature, null, this.computeBins(iFeature));
+            retVal = this.bins.get(iFeature);
+        }
+        return retVal;
+    }
+
+    /**
+     * Compute the binned version of all the features.  This is done in parallel, and is useful when it is known
+     * that most of the features will need to be binned during training.
+     */
+    public void binFeatures() {
+        IntStream.range(0, this.numFeatures()).parallel().forEach(i -> this.getBins(i));
+    }
+
+    /**
+     * Compute the binned version of all the features using approximate quantiles from quantile sketches.  Any bins
+     * already computed are replaced.
+     *
+     * @param sketches	array of quantile sketches, one per feature
+     */
+    public void binFeatures(QuantileSketch[] sketches) {
+        IntStream.range(0, this.numFeatures()).parallel()
+                .forEach(i -> this.bins.set(i, this.computeBins(i, sketches[i].getQuantiles(MAX_BINS))));
+    }
+
+    /**
+     * @return an array of quantile sketches, one per feature, built from the values in this matrix
+     */
+    public QuantileSketch[] sketchFeatures() {
+        return Arrays.stream(this.columns).parallel().map(c -> {
+            QuantileSketch sketch = new QuantileSketch();
+            sketch.update(c);
+            return sketch;
+        }).toArray(QuantileSketch[]::new);
+    }
+
+    /**
+     * Divide the values of a feature into bins using predetermined limits.  Each value is placed in the first bin
+     * whose limit is greater than or equal to it.  Values greater than every limit, and NaN values, go in the last bin.
+     *
+     * @param iFeature	index of the feature to bin
+     * @param limits	sorted array of distinct bin limits, at most one less than the maximum number of bins
+     *
+     * @return the bin descriptor for the feature
+     */
+    private Bins computeBins(int iFeature, double[] limits) {
+        double[] column = this.columns[iFeature];
+        byte[] codes = new byte[column.length];
+        for (int r = 0; r < column.length; r++) {
+            double value = column[r];
+            int bin;
+            if (Double.isNaN(value))
+                bin = limits.length;
+            else {
+                // Binary search for the first limit greater than or equal to the value.
+                int low = 0;
+                int high = limits.length;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (limits[mid] < value)
+                        low = mid + 1;
+                    else
+                        high = mid;
+                }
+                bin = low;
+            }
+            codes[r] = (byte) bin;
+        }
+        return new Bins(codes, limits);
+    }
+
+    /**
+     * Divide the values of a feature into bins.  If there are few enough distinct values, each one gets its own
+     * bin.  Otherwise, the bins are chosen to contain roughly equal numbers of rows.  A value is never split
+     * between two bins.
+     *
+     * @param iFeature	index of the feature to bin
+     *
+     * @return the bin descriptor for the feature
+     */
+    private Bins computeBins(int iFeature) {
+        final int n = this.size();
+        double[] column = this.columns[iFeature];
+        // Get the rows in sorted order.  If the presorted index is not already built, we sort a private copy, since
+        // the index takes up four times as much memory as the bins.
+        int[] sorted = this.sortedRows.get(iFeature);
+        if (sorted == null) {
+            sorted = IntStream.range(0, n).toArray();
+            sortRows(column, sorted, n);
+        }
+        // Count the distinct values to determine the number of rows per bin.
+        int distinct = (n > 0 ? 1 : 0);
+        for (int i = 1; i < n; i++) {
+            if (Splitter.isBoundary(column[sorted[i-1]], column[sorted[i]]))
+                distinct++;
+        }
+        int binRows = (distinct <= MAX_BINS ? 1 : (n + MAX_BINS - 1) / MAX_BINS);
+        // Assign the bin codes.  A bin is closed when it is full and we are at a value boundary.
+        byte[] codes = new byte[n];
+        double[] limits = new double[MAX_BINS - 1];
+        int bin = 0;
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            int r = sorted[i];
+            codes[r] = (byte) bin;
+            count++;
+            if (count >= binRows && i + 1 < n) {
+                double value = column[r];
+                double next = column[sorted[i+1]];
+                if (Splitter.isBoundary(value, next)) {
+                    limits[bin] = Splitter.midpoint(value, next);
+                    bin++;
+                    count = 0;
+                }
+            }
+        }
+        return new Bins(codes, Arrays.copyOf(limits, bin));
+    }
+
+    /**
+     * Sort an array of row indices by the values in a feature column.  NaN values sort to the end.
+     *
+     * @param column	array of feature values, indexed by row
+     * @param rows		array of row indices to sort
+     * @param n			number of row indices to sort
+     */
+    public static void sortRows(double[] column, int[] rows, int n) {
+        // We sort on a long-integer image of each value that orders the same way as Double.compare.  This
+        // eliminates the special cases for NaN.
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = sortKey(column[rows[i]]);
+        sortRange(keys, rows, 0, n);
+    }
+
+    /**
+     * @return a long integer that sorts in the same order as the specified double
+     *
+     * @param value		value to convert
+     */
+    private static long sortKey(double value) {
+        long retVal = Double.doubleToLongBits(value);
+        return retVal ^ ((retVal >> 63) & Long.MAX_VALUE);
+    }
+
+    /**
+     * Sort a range of keys in place, moving the row indices in parallel.  This is a three-way quicksort, so
+     * large numbers of duplicate values do not degrade it.
+     *
+     * @param keys		array of sort keys
+     * @param rows		array of row indices parallel to the keys
+     * @param start		index of the first position in the range
+     * @param end		index past the last position in the range
+     */
+    private static void sortRange(long[] keys, int[] rows, int start, int end) {
+        while (end - start > INSERTION_LIMIT) {
+            // Choose the median of three as the pivot.
+            int mid = (start + end) >>> 1;
+            long a = keys[start];
+            long b = keys[mid];
+            long c = keys[end - 1];
+            long pivot = (a < b ? (b < c ? b : (a < c ? c : a)) : (a < c ? a : (b < c ? c : b)));
+            // Partition into less-than, equal, and greater-than regions.
+            int lt = start;
+            int gt = end;
+            int i = start;
+            while (i < gt) {
+                long k = keys[i];
+                if (k < pivot)
+                    swap(keys, rows, lt++, i++);
+                else if (k > pivot)
+                    swap(keys, rows, i, --gt);
+                else
+                    i++;
+            }
+            // Recurse on the smaller side and loop on the larger, to limit the stack depth.
+            if (lt - start < end - gt) {
+                sortRange(keys, rows, start, lt);
+                start = gt;
+            } else {
+                sortRange(keys, rows, gt, end);
+                end = lt;
+            }
+        }
+        // Finish with an insertion sort.
+        for (int i = start + 1; i < end; i++) {
+            long k = keys[i];
+            int r = rows[i];
+            int j = i - 1;
+            while (j >= start && keys[j] > k) {
+                keys[j + 1] = keys[j];
+                rows[j + 1] = rows[j];
+                j--;
+            }
+            keys[j + 1] = k;
+            rows[j + 1] = r;
+        }
+    }
+
+    /**
+     * Swap two positions in the key and row arrays.
+     *
+     * @param keys		array of sort keys
+     * @param rows		array of row indices parallel to the keys
+     * @param i			first position
+     * @param j			second position
+     */
+    private static void swap(long[] keys, int[] rows, int i, int j) {
+        long k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        int r = rows[i];
+        rows[i] = rows[j];
+        rows[j] = r;
+    }
+
+}
@@ -0,0 +1,641 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object compiles decision trees into JVM bytecode.  Each tree becomes a class implementing
+ * {@link ITreePredictor}, in which every choice node is an if/else comparison with the feature index and threshold
+ * baked in as constants.  The JIT can then inline and branch-predict the tree as ordinary code.
+ *
+ * The classes are written directly in class file version 49, which does not require stack map frames, and loaded
+ * through a private class loader owned by the compiler, so they can be garbage-collected along with it.  The JIT
+ * will not compile very large methods, so each method covers only a limited number of tree levels, and deeper
+ * subtrees are delegated to additional static methods.  If a tree is too big for a single class, the compiler
+ * returns the tree's flat form instead.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class TreeCompiler {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(TreeCompiler.class);
+    /** class loader for the compiled trees */
+    private final Loader loader;
+    /** number of classes compiled */
+    private int classCount;
+    /** number of tree levels to compile into each method */
+    private static final int LEVELS_PER_METHOD = 8;
+    /** maximum number of constant pool entries allowed */
+    private static final int MAX_CONSTANTS = 65000;
+    /** package prefix for generated class names */
+    private static final String CLASS_PREFIX = "org/theseed/dl4j/decision/generated/Tree";
+    /** internal name of the predictor interface */
+    private static final String INTERFACE_NAME = ITreePredictor.class.getName().replace('.', '/');
+    /** descriptor of the prediction methods */
+    private static final String PREDICT_DESCRIPTOR = "([DI)I";
+
+    /**
+     * This is a class loader for generated classes.
+     */
+    private static class Loader extends ClassLoader {
+
+        /**
+         * Create a loader for generated classes.
+         *
+         * @param parent	parent class loader, which must be able to see the predictor interface
+         */
+        protected Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        /**
+         * @return a class defined from a class file image
+         *
+         * @param name		binary name of the class
+         * @param image		class file image
+         */
+        protected Class<?> define(String name, byte[] image) {
+            return this.defineClass(name, image, 0, image.length);
+        }
+
+    }
+
+    /**
+     * This class builds the constant pool for a class file.  Duplicate constants are shared.
+     */
+    private static class ConstantPool {
+
+        /** buffer for the encoded entries */
+        private final ByteArrayOutputStream bytes;
+        /** output stream for encoding entries */
+        private final DataOutputStream out;
+        /** map of constant keys to pool indices */
+        private final Map<String, Integer> indices;
+        /** next available pool index */
+        private int next;
+
+        /**
+         * Create an empty constant pool.
+         */
+        protected ConstantPool() {
+            this.bytes = new ByteArrayOutputStream();
+            this.out = new DataOutputStream(this.bytes);
+            this.indices = new HashMap<String, Integer>();
+            this.next = 1;
+        }
+
+        /**
+         * @return the index of a UTF8 constant
+         *
+         * @param string	string value of the constant
+         */
+        protected int utf8(String string) throws IOException {
+            String key = "U" + string;
+            Integer retVal = this.indices.get(key);
+            if (retVal == null) {
+                this.out.writeByte(1);
+                this.out.writeUTF(string);
+                retVal = this.add(key, 1);
+            }
+            return retVal;
+        }
+
+        /**
+         * @return the index of a class constant
+         *
+         * @param name	internal name of the class
+         */
+        protected int classRef(String name) throws IOException {
+            String key = "C" + name;
+            Integer retVal = this.indices.get(key);
+            if (retVal == null) {
+                int nameIdx = this.utf8(name);
+                this.out.writeByte(7);
+                this.out.writeShort(nameIdx);
+                retVal = this.add(key, 1);
+            }
+            return retVal;
+        }
+
+        /**
+         * @return the index of a method reference constant
+         *
+         * @param owner			internal name of the owning class
+         * @param name			name of the method
+         * @param descriptor	method descriptor
+         */
+        protected int methodRef(String owner, String name, String descriptor) throws IOException {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer retVal = this.indices.get(key);
+            if (retVal == null) {
+                int classIdx = this.classRef(owner);
+                int nameIdx = this.utf8(name);
+                int descIdx = this.utf8(descriptor);
+                this.out.writeByte(12);
+                this.out.writeShort(nameIdx);
+                this.out.writeShort(descIdx);
+                int natIdx = this.add("N" + name + descriptor, 1);
+                this.out.writeByte(10);
+                this.out.writeShort(classIdx);
+                this.out.writeShort(natIdx);
+                retVal = this.add(key, 1);
+            }
+            return retVal;
+        }
+
+        /**
+         * @return the index of an integer constant
+         *
+         * @param value		value of the constant
+         */
+        protected int integer(int value) throws IOException {
+            String key = "I" + value;
+            Integer retVal = this.indices.get(key);
+            if (retVal == null) {
+                this.out.writeByte(3);
+                this.out.writeInt(value);
+                retVal = this.add(key, 1);
+            }
+            return retVal;
+        }
+
+        /**
+         * @return the index of a double constant
+         *
+         * @param value		value of the constant
+         */
+        protected int doubleConst(double value) throws IOException {
+            long bits = Double.doubleToRawLongBits(value);
+            String key = "D" + bits;
+            Integer retVal = this.indices.get(key);
+            if (retVal == null) {
+                this.out.writeByte(6);
+                this.out.writeLong(bits);
+                retVal = this.add(key, 2);
+            }
+            return retVal;
+        }
+
+        /**
+         * Record a new entry.
+         *
+         * @param key		key for the entry
+         * @param width		number of pool slots used by the entry
+         *
+         * @return the index of the new entry
+         */
+        private int add(String key, int width) {
+            int retVal = this.next;
+            this.indices.put(key, retVal);
+            this.next += width;
+            return retVal;
+        }
+
+        /**
+         * @return the number of pool slots in use, plus one (which is the count stored in the class file)
+         */
+        protected int count() {
+            return this.next;
+        }
+
+        /**
+         * Write the encoded entries to a class file.
+         *
+         * @param classOut	output stream for the class file
+         */
+        protected void writeTo(DataOutputStream classOut) throws IOException {
+            this.out.flush();
+            this.bytes.writeTo(classOut);
+        }
+
+    }
+
+    /**
+     * This class accumulates the bytecode for a method.
+     */
+    private static class Code {
+
+        /** bytecode buffer */
+        private byte[] buffer;
+        /** number of bytes used */
+        private int len;
+
+        /**
+         * Create an empty code buffer.
+         */
+        protected Code() {
+            this.buffer = new byte[256];
+            this.len = 0;
+        }
+
+        /**
+         * Add a byte to the code.
+         *
+         * @param b		byte to add
+         */
+        protected void u1(int b) {
+            if (this.len >= this.buffer.length)
+                this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+            this.buffer[this.len++] = (byte) b;
+        }
+
+        /**
+         * Add a two-byte value to the code.
+         *
+         * @param v		value to add
+         */
+        protected void u2(int v) {
+            this.u1(v >> 8);
+            this.u1(v);
+        }
+
+        /**
+         * Store a two-byte value at an earlier position in the code.
+         *
+         * @param pos	position at which to store the value
+         * @param v		value to store
+         */
+        protected void patch(int pos, int v) {
+            this.buffer[pos] = (byte) (v >> 8);
+            this.buffer[pos + 1] = (byte) v;
+        }
+
+        /**
+         * @return the current length of the code
+         */
+        protected int length() {
+            return this.len;
+        }
+
+        /**
+         * Write the code to a class file.
+         *
+         * @param out	output stream for the class file
+         */
+        protected void writeTo(DataOutputStream out) throws IOException {
+            out.write(this.buffer, 0, this.len);
+        }
+
+    }
+
+    /**
+     * This class describes a generated method.
+     */
+    private static class MethodSpec {
+
+        /** access flags */
+        private final int access;
+        /** name of the method */
+        private final String name;
+        /** method descriptor */
+        private final String descriptor;
+        /** maximum stack depth */
+        private final int maxStack;
+        /** number of local variable slots */
+        private final int maxLocals;
+        /** bytecode */
+        private final Code code;
+
+        /**
+         * Describe a generated method.
+         *
+         * @param access		access flags
+         * @param name			method name
+         * @param descriptor	method descriptor
+         * @param maxStack		maximum stack depth
+         * @param maxLocals		number of local variable slots
+         * @param code			bytecode for the method
+         */
+        protected MethodSpec(int access, String name, String descriptor, int maxStack, int maxLocals, Code code) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.code = code;
+        }
+
+    }
+
+    // OPCODES
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ILOAD_1 = 0x1b;
+    private static final int ILOAD_2 = 0x1c;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int DALOAD = 0x31;
+    private static final int IADD = 0x60;
+    private static final int DCMPL = 0x97;
+    private static final int IFLE = 0x9e;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    // ACCESS FLAGS
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    /**
+     * Create a new tree compiler.
+     */
+    public TreeCompiler() {
+        this.loader = new Loader(ITreePredictor.class.getClassLoader());
+        this.classCount = 0;
+    }
+
+    /**
+     * Compile a decision tree.
+     *
+     * @param tree	decision tree to compile
+     *
+     * @return a predictor for the tree; this is the tree's flat form if the tree is too big to compile
+     */
+    public ITreePredictor compile(DecisionTree tree) {
+        FlatTree flat = tree.getFlatTree();
+        ITreePredictor retVal;
+        String className;
+        synchronized (this) {
+            className = CLASS_PREFIX + this.classCount;
+            this.classCount++;
+        }
+        try {
+            byte[] image = this.generate(className, flat);
+            if (image == null) {
+                log.warn("Tree with {} choice nodes is too big to compile.", flat.size());
+                retVal = flat;
+            } else {
+                Class<?> compiled;
+                synchronized (this.loader) {
+                    compiled = this.loader.define(className.replace('/', '.'), image);
+                }
+                retVal = (ITreePredictor) compiled.getDeclaredConstructor().newInstance();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
+            throw new IllegalStateException("Error loading compiled tree: " + e.toString(), e);
+        }
+        return retVal;
+    }
+
+    /**
+     * Check a compiled tree against the interpreted tree on the edge values of every choice node:  the threshold
+     * itself, the next value above it, NaN, and both infinities.  Each test row follows the path to the node
+     * being checked, so the comparisons reach every level of the tree, including the ones delegated to
+     * additional methods.
+     *
+     * @param tree		decision tree that was compiled
+     * @param compiled	compiled predictor for the tree
+     *
+     * @throws IllegalStateException if the compiled tree disagrees with the interpreted tree
+     */
+    public static void checkEdges(DecisionTree tree, ITreePredictor compiled) {
+        double[] row = new double[tree.getNumFeatures()];
+        checkEdges(tree.getRoot(), tree.getRoot(), compiled, row);
+    }
+
+    /**
+     * Check a compiled tree against the interpreted tree on the edge values of every choice node in a subtree.
+     *
+     * @param root		root of the interpreted tree
+     * @param node		root of the subtree to check
+     * @param compiled	compiled predictor for the tree
+     * @param row		feature row leading to the subtree; it is restored before returning
+     *
+     * @throws IllegalStateException if the compiled tree disagrees with the interpreted tree
+     */
+    private static void checkEdges(DecisionTree.Node root, DecisionTree.Node node, ITreePredictor compiled,
+            double[] row) {
+        if (node instanceof DecisionTree.ChoiceNode) {
+            DecisionTree.ChoiceNode choice = (DecisionTree.ChoiceNode) node;
+            final int iFeature = choice.getFeatureIdx();
+            final double limit = choice.getLimit();
+            final double saved = row[iFeature];
+            for (double value : new double[] { limit, Math.nextUp(limit), Double.NaN, Double.POSITIVE_INFINITY,
+                    Double.NEGATIVE_INFINITY }) {
+                row[iFeature] = value;
+                int expected = interpret(root, row);
+                int actual = compiled.predict(row, 0);
+                if (expected != actual)
+                    throw new IllegalStateException("Compiled tree predicted " + actual + " instead of " + expected
+                            + " for feature " + iFeature + " with value " + value + ".");
+            }
+            row[iFeature] = limit;
+            checkEdges(root, choice.getLeft(), compiled, row);
+            row[iFeature] = Math.nextUp(limit);
+            checkEdges(root, choice.getRight(), compiled, row);
+            row[iFeature] = saved;
+        }
+    }
+
+    /**
+     * @return the class predicted for a row of feature values by walking the nodes of an interpreted tree
+     *
+     * @param root	root node of the tree
+     * @param row	array of feature values for the row
+     */
+    private static int interpret(DecisionTree.Node root, double[] row) {
+        DecisionTree.Node current = root;
+        while (current instanceof DecisionTree.ChoiceNode)
+            current = ((DecisionTree.ChoiceNode) current).choose(row);
+        return ((DecisionTree.LeafNode) current).getiClass();
+    }
+
+    /**
+     * Generate the class file image for a tree.
+     *
+     * @param className		internal name of the class to generate
+     * @param flat			flat form of the tree
+     *
+     * @return the class file image, or NULL if the tree is too big
+     *
+     * @throws IOException
+     */
+    private byte[] generate(String className, FlatTree flat) throws IOException {
+        ConstantPool pool = new ConstantPool();
+        List<MethodSpec> methods = new ArrayList<MethodSpec>();
+        // Create the constructor.
+        Code init = new Code();
+        init.u1(ALOAD_0);
+        init.u1(INVOKESPECIAL);
+        init.u2(pool.methodRef("java/lang/Object", "<init>", "()V"));
+        init.u1(RETURN);
+        methods.add(new MethodSpec(ACC_PUBLIC, "<init>", "()V", 1, 1, init));
+        // Create the interface method.  It delegates to the static method for the root.
+        Code predict = new Code();
+        int root = flat.getRoot();
+        if (root < 0) {
+            this.pushInt(predict, pool, ~root);
+            predict.u1(IRETURN);
+        } else {
+            predict.u1(ALOAD_1);
+            predict.u1(ILOAD_2);
+            predict.u1(INVOKESTATIC);
+            predict.u2(pool.methodRef(className, "n" + root, PREDICT_DESCRIPTOR));
+            predict.u1(IRETURN);
+        }
+        methods.add(new MethodSpec(ACC_PUBLIC, "predict", PREDICT_DESCRIPTOR, 2, 3, predict));
+        // Now create a static method for each subtree.  The queue contains the subtree roots still to generate.
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        if (root >= 0)
+            queue.add(root);
+        while (! queue.isEmpty() && pool.count() < MAX_CONSTANTS) {
+            int node = queue.remove();
+            Code code = new Code();
+            this.emitNode(code, pool, className, flat, node, 0, queue);
+            methods.add(new MethodSpec(ACC_PRIVATE | ACC_STATIC, "n" + node, PREDICT_DESCRIPTOR, 4, 2, code));
+        }
+        // Finish the class file.
+        int thisIdx = pool.classRef(className);
+        int superIdx = pool.classRef("java/lang/Object");
+        int interfaceIdx = pool.classRef(INTERFACE_NAME);
+        int codeIdx = pool.utf8("Code");
+        for (MethodSpec method : methods) {
+            pool.utf8(method.name);
+            pool.utf8(method.descriptor);
+        }
+        byte[] retVal = null;
+        if (pool.count() < MAX_CONSTANTS) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(pool.count());
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIdx);
+            out.writeShort(superIdx);
+            out.writeShort(1);
+            out.writeShort(interfaceIdx);
+            // No fields.
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (MethodSpec method : methods) {
+                out.writeShort(method.access);
+                out.writeShort(pool.utf8(method.name));
+                out.writeShort(pool.utf8(method.descriptor));
+                // The only attribute is the code.
+                out.writeShort(1);
+                out.writeShort(codeIdx);
+                out.writeInt(12 + method.code.length());
+                out.writeShort(method.maxStack);
+                out.writeShort(method.maxLocals);
+                out.writeInt(method.code.length());
+                method.code.writeTo(out);
+                // No exception table and no code attributes.
+                out.writeShort(0);
+                out.writeShort(0);
+            }
+            // No class attributes.
+            out.writeShort(0);
+            out.flush();
+            retVal = bytes.toByteArray();
+        }
+        return retVal;
+    }
+
+    /**
+     * Generate the code for a subtree.  A choice node compares the feature value to the threshold and falls through
+     * to the right subtree if it is greater; otherwise (including NaN) it branches to the left subtree.  This is the
+     * same as the interpreted tree.
+     *
+     * @param code			bytecode buffer for the current method
+     * @param pool			constant pool for the class
+     * @param className		internal name of the class being generated
+     * @param flat			flat form of the tree
+     * @param node			encoded index of the subtree root
+     * @param level			level of the subtree root within the current method
+     * @param queue			queue of subtree roots that need their own methods
+     *
+     * @throws IOException
+     */
+    private void emitNode(Code code, ConstantPool pool, String className, FlatTree flat, int node, int level,
+            Deque<Integer> queue) throws IOException {
+        if (node < 0) {
+            // Here we have a leaf.  Return its class.
+            this.pushInt(code, pool, ~node);
+            code.u1(IRETURN);
+        } else if (level >= LEVELS_PER_METHOD) {
+            // Here the subtree needs its own method.
+            queue.add(node);
+            code.u1(ALOAD_0);
+            code.u1(ILOAD_1);
+            code.u1(INVOKESTATIC);
+            code.u2(pool.methodRef(className, "n" + node, PREDICT_DESCRIPTOR));
+            code.u1(IRETURN);
+        } else {
+            // Load the feature value.
+            code.u1(ALOAD_0);
+            code.u1(ILOAD_1);
+            int feature = flat.getFeature(node);
+            if (feature != 0) {
+                this.pushInt(code, pool, feature);
+                code.u1(IADD);
+            }
+            code.u1(DALOAD);
+            // Compare it to the threshold.
+            code.u1(LDC2_W);
+            code.u2(pool.doubleConst(flat.getThreshold(node)));
+            code.u1(DCMPL);
+            int branch = code.length();
+            code.u1(IFLE);
+            code.u2(0);
+            this.emitNode(code, pool, className, flat, flat.getRight(node), level + 1, queue);
+            code.patch(branch + 1, code.length() - branch);
+            this.emitNode(code, pool, className, flat, flat.getLeft(node), level + 1, queue);
+        }
+    }
+
+    /**
+     * Generate the code to push an integer constant.
+     *
+     * @param code		bytecode buffer for the current method
+     * @param pool		constant pool for the class
+     * @param value		value to push
+     *
+     * @throws IOException
+     */
+    private void pushInt(Code code, ConstantPool pool, int value) throws IOException {
+        if (value >= -1 && value <= 5)
+            code.u1(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH);
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH);
+            code.u2(value);
+        } else {
+            code.u1(LDC_W);
+            code.u2(pool.integer(value));
+        }
+    }
+
+}
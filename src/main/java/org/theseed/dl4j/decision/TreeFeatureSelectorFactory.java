@@ -12,7 +12,8 @@ import org.theseed.utils.IDescribable;
 
 /**
  * Feature selector factories create the feature selectors for each level of a single decision tree.  Each factory
- * belongs to a single tree and returns a selector for each node.
+ * belongs to a single tree and returns a selector for each node.  If subtrees of the tree are built in parallel,
+ * each parallel subtree gets its own factory from the "split" method.
  *
  * @author Bruce Parrello
  *
@@ -69,6 +70,31 @@ public abstract class TreeFeatureSelectorFactory {
      */
     public abstract FeatureSelector getSelector(int depth);
 
+    /**
+     * Create a factory of the same type for building a subtree independently of this one.  The new factory
+     * is seeded from this factory's randomizer, so the result depends only on the order in which subtree
+     * factories are requested, and not on the order in which the subtrees are built.
+     *
+     * @return a new feature selector factory for a subtree
+     */
+    public TreeFeatureSelectorFactory split() {
+        return this.copy(this.randomizer.nextLong());
+    }
+
+    /**
+     * Create a factory of the same type with a new randomizer seed.  The default implementation returns this
+     * factory itself, which is suitable for a stateless factory that is safe to share between threads.  In that
+     * case the subtrees draw from a single randomizer, so the result may depend on thread timing.  Factories that
+     * need reproducible parallel builds should override this method.
+     *
+     * @return a factory of the same type with a new randomizer seed
+     *
+     * @param randSeed	randomizer seed for the new factory
+     */
+    protected TreeFeatureSelectorFactory copy(long randSeed) {
+        return this;
+    }
+
     /**
      * @return the randomizer
      */
@@ -32,9 +32,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.dl4j.DistributedOutputStream;
+import org.theseed.dl4j.QuantileSketch;
 import org.theseed.dl4j.TabbedDataSetReader;
 import org.theseed.dl4j.decision.DecisionTree;
+import org.theseed.dl4j.decision.Impurity;
 import org.theseed.dl4j.decision.RandomForest;
+import org.theseed.dl4j.decision.SplitPointFinder;
 import org.theseed.dl4j.decision.TreeFeatureSelectorFactory;
 import org.theseed.io.TabbedLineReader;
 import org.theseed.reports.ClassTestValidationReport;
@@ -73,6 +76,16 @@ import org.theseed.stats.Shuffler;
  * --maxDepth		maximum tree depth
  * --sampleSize		number of examples to use for each tree's subset
  * --selection		feature selection mode (default NORMAL)
+ * --finder			split point finder for randomly-selected features (default MEAN)
+ * --build			tree construction strategy (default DEPTH)
+ * --impurity		impurity criterion for evaluating splits (default ENTROPY)
+ * --tolerance		out-of-bag error change below which tree building stops early; the default is 0, which
+ * 					always builds all the trees
+ * --window			number of trees over which the out-of-bag error change is measured (default 10)
+ * --oob			train on the whole input file and use out-of-bag accuracy in place of a testing set
+ * --compile		compile the trees into bytecode before testing
+ * --engine		inference engine for testing predictions (default TRAVERSAL)
+ * --earlyExit		sort the trees by out-of-bag accuracy and stop voting on each testing row once its outcome is decided
  * --rootFile		if feature selection mode is ROOTED, the name of a file containing the tree root feature names in the first column
  * --prefer			preferred accuracy metric, for use in searching
  *
@@ -96,6 +109,10 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
     private Iterator<TreeFeatureSelectorFactory> factoryIter;
     /** array of non-trivial feature indices */
     private int[] usefulFeatureIdxes;
+    /** quantile sketches of the training set features, or NULL if none were built */
+    private QuantileSketch[] sketches;
+    /** maximum number of training rows used to verify compiled trees when there is no testing set */
+    private static final int VERIFY_SIZE = 1000;
 
     // COMMAND-LINE OPTIONS
 
@@ -139,6 +156,42 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
     @Option(name = "--selection", usage = "method for determining feature selection in individual trees")
     private TreeFeatureSelectorFactory.Type selection;
 
+    /** method for finding split points on randomly-selected features */
+    @Option(name = "--finder", usage = "method for finding split points on randomly-selected features")
+    private SplitPointFinder.Type finder;
+
+    /** strategy for building each tree */
+    @Option(name = "--build", usage = "tree construction strategy")
+    private DecisionTree.BuildMode buildMode;
+
+    /** impurity criterion for evaluating splits */
+    @Option(name = "--impurity", usage = "impurity criterion for evaluating splits")
+    private Impurity impurity;
+
+    /** out-of-bag error change below which tree building stops early */
+    @Option(name = "--tolerance", metaVar = "0.001", usage = "out-of-bag error change for early stopping (0 to build all trees)")
+    private double tolerance;
+
+    /** number of trees over which the out-of-bag error change is measured */
+    @Option(name = "--window", metaVar = "10", usage = "number of trees over which to measure out-of-bag error convergence")
+    private int window;
+
+    /** if specified, there is no testing set, and the out-of-bag accuracy is used to evaluate the model */
+    @Option(name = "--oob", usage = "train on all the input and evaluate using out-of-bag accuracy")
+    private boolean oobMode;
+
+    /** if specified, the trees will be compiled into bytecode before testing */
+    @Option(name = "--compile", usage = "compile the trees into bytecode before testing")
+    private boolean compile;
+
+    /** inference engine for testing predictions */
+    @Option(name = "--engine", usage = "inference engine for testing predictions")
+    private RandomForest.Engine engine;
+
+    /** if specified, the trees will be sorted by accuracy and stop voting on a row once its outcome is decided */
+    @Option(name = "--earlyExit", usage = "stop tree voting on each testing row once the outcome is decided")
+    private boolean earlyExit;
+
     /** file containing root features for ROOTED selection */
     @Option(name = "--rootFile", usage = "name of tab-delimited file (with headers) in model directory containing list of feature column names for root selection")
     private String rootFile;
@@ -182,7 +235,8 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
     public void run() {
         try {
             // Convert the testing set to decision tree format.
-            RandomForest.flattenDataSet(this.testingSet);
+            if (! this.oobMode)
+                RandomForest.flattenDataSet(this.testingSet);
             // Now we read the training set.
             this.showProgressMessage("Reading training set.");
             DataSet trainingSet = this.readTrainingSet();
@@ -193,16 +247,40 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
             this.showProgressMessage("Creating selection factories");
             this.factoryIter = this.selection.create(this.hParms.getNumTrees(), this);
             this.showProgressMessage("Building the model.");
-            this.model = new RandomForest(trainingSet, this.hParms, this.factoryIter, this.getProgressMonitor());
+            this.model = new RandomForest(trainingSet, this.hParms, this.factoryIter, this.getProgressMonitor(),
+                    this.sketches);
+            // Compile the trees, if desired.  The testing set is used to verify the compiled trees.  If there is
+            // no testing set, we use a slice of the training set.
+            if (this.compile) {
+                this.showProgressMessage("Compiling the model.");
+                INDArray sample;
+                if (this.oobMode)
+                    sample = trainingSet.getRange(0, Math.min(VERIFY_SIZE, trainingSet.numExamples())).getFeatures();
+                else
+                    sample = this.testingSet.getFeatures();
+                this.model.compile(sample);
+            }
+            this.model.setEngine(this.engine);
+            if (this.earlyExit) {
+                this.model.sortTrees();
+                this.model.setEarlyExit(true);
+            }
             // Test the accuracy.
             this.showProgressMessage("Testing the model.");
-            // Create a label array for output.
-            INDArray predictions = this.model.predict(this.testingSet.getFeatures());
+            INDArray predictions = null;
+            INDArray expectations = null;
+            Evaluation accuracy;
+            if (this.oobMode)
+                accuracy = this.computeOobEvaluation();
+            else {
+                // Create a label array for output.
+                predictions = this.model.predict(this.testingSet.getFeatures());
+                // Get the actual labels.
+                expectations = this.testingSet.getLabels();
+                accuracy = new Evaluation(this.getLabels());
+                accuracy.eval(expectations, predictions);
+            }
             String duration = DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "mm:ss");
-            // Get the actual labels.
-            INDArray expectations = this.testingSet.getLabels();
-            Evaluation accuracy = new Evaluation(this.getLabels());
-            accuracy.eval(expectations, predictions);
             this.showProgressMessage("Writing the report.");
             TextStringBuilder reportBuilder = new TextStringBuilder(800);
             // Describe the model.
@@ -215,13 +293,19 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
                             "     sampleSize  = %12d, batchSize     = %12d%n" +
                             "     --------------------------------------------------------%n" +
                             "     Randomization strategy is %s with seed %d.%n" +
-                            "     %s minutes to train model.",
+                            "     Split point finder is %s.  Tree build mode is %s.  Impurity criterion is %s.%n" +
+                            "     %d trees built.  %s minutes to train model.",
                            this.modelName.getCanonicalPath(), this.maxFeatures, this.minSplit,
                            this.nEstimators, this.maxDepth, this.sampleSize, this.batchSize,
-                           this.method.toString(), this.seed, duration);
-            this.produceAccuracyReport(reportBuilder, accuracy, predictions, expectations);
+                           this.method.toString(), this.seed, this.finder.toString(), this.buildMode.toString(),
+                           this.impurity.toString(), this.model.getTreeCount(), duration);
+            if (this.oobMode)
+                reportBuilder.appendln(accuracy.stats());
+            else
+                this.produceAccuracyReport(reportBuilder, accuracy, predictions, expectations);
             this.setRating(this.searchMetric.getValue(accuracy));
             reportBuilder.appendNewLine();
+            this.produceOobReport(reportBuilder);
             INDArray impactArray = this.model.computeImpact();
             this.impact = this.computeImpactList(impactArray);
             // Output the 10 most impactful columns.
@@ -245,6 +329,49 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
 
     }
 
+    /**
+     * @return an evaluation built from the out-of-bag confusion matrix, for use when there is no testing set
+     */
+    private Evaluation computeOobEvaluation() {
+        Evaluation retVal = new Evaluation(this.getLabels());
+        int[][] confusion = this.model.getOobConfusion();
+        for (int i = 0; i < confusion.length; i++) {
+            for (int j = 0; j < confusion[i].length; j++) {
+                for (int k = confusion[i][j]; k > 0; k--)
+                    retVal.eval(j, i);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Add the out-of-bag accuracy and confusion matrix to the report.  These are computed from the training
+     * rows each tree did not see, so they do not require a separate testing set.
+     *
+     * @param reportBuilder		report being built
+     */
+    private void produceOobReport(TextStringBuilder reportBuilder) {
+        int oobCount = this.model.getOobCount();
+        if (oobCount > 0) {
+            reportBuilder.appendln("Out-of-bag accuracy is %6.2f%% over %d training examples.",
+                    this.model.getOobAccuracy() * 100.0, oobCount);
+            reportBuilder.appendNewLine();
+            List<String> labels = this.getLabels();
+            int[][] confusion = this.model.getOobConfusion();
+            reportBuilder.append("%-20s", "Expected\\Predicted");
+            for (String label : labels)
+                reportBuilder.append(" %12s", StringUtils.abbreviate(label, 12));
+            reportBuilder.appendNewLine();
+            for (int i = 0; i < labels.size(); i++) {
+                reportBuilder.append("%-20s", StringUtils.abbreviate(labels.get(i), 20));
+                for (int j = 0; j < labels.size(); j++)
+                    reportBuilder.append(" %12d", confusion[i][j]);
+                reportBuilder.appendNewLine();
+            }
+            reportBuilder.appendNewLine();
+        }
+    }
+
     /**
      * @return a sorted list of the impact values for all the columns
      *
@@ -303,7 +430,8 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
             // We need to merge the training set with the testing set.  Note the order doesn't matter.
             DataSet fullSet = this.readTrainingSet();
             List<DataSet> rows = fullSet.asList();
-            rows.addAll(this.testingSet.asList());
+            if (this.testingSet != null)
+                rows.addAll(this.testingSet.asList());
             // Now separate the dataset rows by classification.
             List<List<DataSet>> groups = IntStream.range(0, nLabels).mapToObj(i -> new ArrayList<DataSet>(rows.size()))
                     .collect(Collectors.toList());
@@ -332,16 +460,35 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
         return retVal;
     }
 
+    @Override
+    protected void readTestingSet() {
+        if (! this.oobMode)
+            super.readTestingSet();
+        else {
+            // Here the whole input file is used for training.
+            log.info("No testing set:  out-of-bag accuracy will be used to evaluate the model.");
+            this.testSize = 0;
+            this.testingSet = null;
+            this.reader.setBatchSize(this.batchSize);
+        }
+    }
+
     /**
+     * Read the full training set.  If the split point finder uses quantile sketches, the sketches are built
+     * while the batches are read.
+     *
      * @return the full training set for this model
      */
     private DataSet readTrainingSet() {
         log.info("Reading training set.");
+        this.reader.setSketching(this.hParms.getFinderType() == SplitPointFinder.Type.SKETCH);
         List<DataSet> batches = new ArrayList<DataSet>();
         for (DataSet batch : this.reader) {
             RandomForest.flattenDataSet(batch);
             batches.add(batch);
         }
+        this.sketches = this.reader.getSketches();
+        this.reader.setSketching(false);
         DataSet retVal = DataSet.merge(batches);
         log.info("{} records read from training set.", retVal.numExamples());
         return retVal;
@@ -379,6 +526,10 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
         this.selection = TreeFeatureSelectorFactory.Type.NORMAL;
         this.rootFile = "roots.tbl";
         this.searchMetric = ClassMetric.ACCURACY;
+        this.oobMode = false;
+        this.compile = false;
+        this.engine = RandomForest.Engine.TRAVERSAL;
+        this.earlyExit = false;
         // Clear the rating value.
         this.setRating(0.0);
     }
@@ -417,8 +568,25 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
        writer.format("--sampleSize %d\t# number of examples to use in each subsample%n", this.sampleSize);
        writer.format("--batchSize %d\t# size of each input batch%n", this.batchSize);
        typeList = Stream.of(TreeFeatureSelectorFactory.Type.values()).map(TreeFeatureSelectorFactory.Type::name).collect(Collectors.joining(", "));
-       writer.format("# Valid split point finder methods are %s.%n", typeList);
+       writer.format("# Valid feature selection methods are %s.%n", typeList);
        writer.format("--selection %s\t# selection method for features in trees%n", this.selection.toString());
+       typeList = Stream.of(SplitPointFinder.Type.values()).map(SplitPointFinder.Type::name).collect(Collectors.joining(", "));
+       writer.format("# Valid split point finder types are %s.%n", typeList);
+       writer.format("--finder %s\t# split point finder for randomly-selected features%n", this.finder.toString());
+       typeList = Stream.of(DecisionTree.BuildMode.values()).map(DecisionTree.BuildMode::name).collect(Collectors.joining(", "));
+       writer.format("# Valid tree build modes are %s.%n", typeList);
+       writer.format("--build %s\t# tree construction strategy%n", this.buildMode.toString());
+       typeList = Stream.of(Impurity.values()).map(Impurity::name).collect(Collectors.joining(", "));
+       writer.format("# Valid impurity criteria are %s.%n", typeList);
+       writer.format("--impurity %s\t# impurity criterion for evaluating splits%n", this.impurity.toString());
+       writer.format("--tolerance %g\t# out-of-bag error change for early stopping (0 to build all trees)%n", this.tolerance);
+       writer.format("--window %d\t# number of trees over which to measure out-of-bag error convergence%n", this.window);
+       writer.format("%s--oob\t# train on all the input and evaluate using out-of-bag accuracy%n", (this.oobMode ? "" : "# "));
+       writer.format("%s--compile\t# compile the trees into bytecode before testing%n", (this.compile ? "" : "# "));
+       typeList = Stream.of(RandomForest.Engine.values()).map(RandomForest.Engine::name).collect(Collectors.joining(", "));
+       writer.format("# Valid inference engines are %s.%n", typeList);
+       writer.format("--engine %s\t# inference engine for testing predictions%n", this.engine.toString());
+       writer.format("%s--earlyExit\t# stop tree voting on each testing row once the outcome is decided%n", (this.earlyExit ? "" : "# "));
        writer.format("--rootFile %s\t# file (tab-delimited with headers, column 1) containing root features for ROOTED selection%n", this.rootFile);
        writer.close();
    }
@@ -510,6 +678,11 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
         this.hParms.setNumExamples(this.sampleSize);
         this.hParms.setNumFeatures(this.maxFeatures);
         this.hParms.setNumTrees(this.nEstimators);
+        this.hParms.setFinderType(this.finder);
+        this.hParms.setBuildMode(this.buildMode);
+        this.hParms.setImpurity(this.impurity);
+        this.hParms.setTolerance(this.tolerance);
+        this.hParms.setWindow(this.window);
         // Set the randomizer seed.
         RandomForest.setSeed(seed);
         // Initialize the low-level computed parameters.
@@ -520,8 +693,12 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
 
     @Override
     public void setSizeParms(int inputSize, int featureCols) {
-        this.testSize = inputSize / 10;
-        if (testSize < 1) testSize = 1;
+        if (this.oobMode)
+            this.testSize = 0;
+        else {
+            this.testSize = inputSize / 10;
+            if (testSize < 1) testSize = 1;
+        }
         int nExamples = inputSize - testSize;
         RandomForest.Parms hyperParms = new RandomForest.Parms(nExamples, featureCols);
         copyHyperParmsToOptions(hyperParms);
@@ -539,6 +716,11 @@ public class RandomForestTrainProcessor extends ModelProcessor implements ITrain
         this.minSplit = hyperParms.getLeafLimit();
         this.maxFeatures = hyperParms.getNumFeatures();
         this.sampleSize = hyperParms.getNumExamples();
+        this.finder = hyperParms.getFinderType();
+        this.buildMode = hyperParms.getBuildMode();
+        this.impurity = hyperParms.getImpurity();
+        this.tolerance = hyperParms.getTolerance();
+        this.window = hyperParms.getWindow();
     }
 
     /**
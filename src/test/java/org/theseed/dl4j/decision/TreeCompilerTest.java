@@ -0,0 +1,158 @@
+/**
+ *
+ */
+package org.theseed.dl4j.decision;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the decision tree compiler.  Each compiled tree is compared with the tree's flat form, which is the
+ * reference implementation of the threshold rule:  a value goes right only if it is strictly greater than the
+ * threshold, so threshold-equal values and NaN go left.
+ *
+ * @author Bruce Parrello
+ *
+ */
+class TreeCompilerTest {
+
+    /** edge values tested at every threshold, in addition to the threshold itself and its neighbors */
+    private static final double[] SPECIALS = new double[] { Double.NaN, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, 0.0, -0.0 };
+
+    /**
+     * @return a choice node with the specified children
+     *
+     * @param iFeat		index of the deciding feature
+     * @param limit		threshold (inclusive on the left)
+     * @param left		left child
+     * @param right		right child
+     */
+    private static DecisionTree.Node choice(int iFeat, double limit, DecisionTree.Node left, DecisionTree.Node right) {
+        DecisionTree.ChoiceNode retVal = new DecisionTree.ChoiceNode(iFeat, limit, 1.0, 0.5);
+        retVal.setLeft(left);
+        retVal.setRight(right);
+        return retVal;
+    }
+
+    /**
+     * @return a leaf node for the specified class
+     *
+     * @param iClass	index of the predicted class
+     */
+    private static DecisionTree.Node leaf(int iClass) {
+        return new DecisionTree.LeafNode(iClass, 0.0);
+    }
+
+    /**
+     * @return a small three-feature tree whose leaves all predict different classes
+     */
+    private static DecisionTree smallTree() {
+        DecisionTree.Node root = choice(0, 1.5,
+                choice(1, -2.0, leaf(0), leaf(1)),
+                choice(2, 0.0,
+                        choice(1, 10.0, leaf(2), leaf(3)),
+                        leaf(4)));
+        return new DecisionTree(3, 5, root, 9);
+    }
+
+    /**
+     * @return a chain tree with a leaf on the left of every choice node, deep enough to need several methods
+     *
+     * @param depth		number of choice nodes
+     */
+    private static DecisionTree deepTree(int depth) {
+        DecisionTree.Node node = leaf(depth);
+        for (int i = depth - 1; i >= 0; i--)
+            node = choice(i % 4, i * 0.25 - 2.0, leaf(i), node);
+        return new DecisionTree(4, depth + 1, node, 2 * depth + 1);
+    }
+
+    /**
+     * Compare a compiled tree with its flat form on random rows and on the edge values of every threshold.
+     *
+     * @param tree		tree to test
+     */
+    private static void checkTree(DecisionTree tree) {
+        TreeCompiler compiler = new TreeCompiler();
+        ITreePredictor compiled = compiler.compile(tree);
+        assertThat(compiled, not(instanceOf(FlatTree.class)));
+        FlatTree flat = tree.getFlatTree();
+        final int nFeatures = tree.getNumFeatures();
+        // The rows are stored at an offset in a larger array, the way batch prediction presents them.
+        final int offset = 2;
+        double[] data = new double[nFeatures + offset];
+        Random rand = new Random(1234);
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < nFeatures; j++)
+                data[offset + j] = rand.nextGaussian() * 5.0;
+            assertThat(compiled.predict(data, offset), equalTo(flat.predict(data, offset)));
+        }
+        for (int node = 0; node < flat.size(); node++) {
+            final int iFeature = flat.getFeature(node);
+            final double limit = flat.getThreshold(node);
+            for (double base : new double[] { Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, limit }) {
+                Arrays.fill(data, base);
+                for (double value : new double[] { limit, Math.nextUp(limit), Math.nextDown(limit) }) {
+                    data[offset + iFeature] = value;
+                    assertThat(compiled.predict(data, offset), equalTo(flat.predict(data, offset)));
+                }
+                for (double value : SPECIALS) {
+                    data[offset + iFeature] = value;
+                    assertThat(compiled.predict(data, offset), equalTo(flat.predict(data, offset)));
+                }
+            }
+        }
+        // The compiler's own edge check must accept the tree.
+        TreeCompiler.checkEdges(tree, compiled);
+    }
+
+    @Test
+    void testSmallTree() {
+        DecisionTree tree = smallTree();
+        checkTree(tree);
+        ITreePredictor compiled = new TreeCompiler().compile(tree);
+        // Threshold-equal values and NaN go left; only strictly greater values go right.
+        assertThat(compiled.predict(new double[] { 1.5, -2.0, 0.0 }), equalTo(0));
+        assertThat(compiled.predict(new double[] { 1.5, Math.nextUp(-2.0), 0.0 }), equalTo(1));
+        assertThat(compiled.predict(new double[] { Double.NaN, Double.NaN, Double.NaN }), equalTo(0));
+        assertThat(compiled.predict(new double[] { Double.POSITIVE_INFINITY, 10.0, 0.0 }), equalTo(2));
+        assertThat(compiled.predict(new double[] { Double.POSITIVE_INFINITY, Double.NaN, Double.NaN }), equalTo(2));
+        assertThat(compiled.predict(new double[] { 2.0, Double.POSITIVE_INFINITY, 0.0 }), equalTo(3));
+        assertThat(compiled.predict(new double[] { 2.0, 0.0, Double.MIN_VALUE }), equalTo(4));
+        assertThat(compiled.predict(new double[] { Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0.0 }), equalTo(1));
+    }
+
+    @Test
+    void testInfiniteThresholds() {
+        DecisionTree.Node root = choice(0, Double.POSITIVE_INFINITY,
+                choice(1, Double.NEGATIVE_INFINITY, leaf(0), leaf(1)),
+                leaf(2));
+        DecisionTree tree = new DecisionTree(2, 3, root, 5);
+        checkTree(tree);
+        ITreePredictor compiled = new TreeCompiler().compile(tree);
+        assertThat(compiled.predict(new double[] { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY }), equalTo(0));
+        assertThat(compiled.predict(new double[] { Double.POSITIVE_INFINITY, -Double.MAX_VALUE }), equalTo(1));
+        assertThat(compiled.predict(new double[] { Double.NaN, Double.NaN }), equalTo(0));
+    }
+
+    @Test
+    void testLeafOnlyTree() {
+        DecisionTree tree = new DecisionTree(2, 4, leaf(3), 1);
+        ITreePredictor compiled = new TreeCompiler().compile(tree);
+        assertThat(compiled.predict(new double[] { 0.0, Double.NaN }), equalTo(3));
+        assertThat(compiled.predict(new double[] { 0.0, Double.NaN }), equalTo(tree.getFlatTree().predict(new double[2])));
+    }
+
+    @Test
+    void testDeepTree() {
+        // This is deeper than the number of levels generated in each method, so the delegation is exercised.
+        checkTree(deepTree(30));
+    }
+
+}